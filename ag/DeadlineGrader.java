@@ -0,0 +1,130 @@
+package nachos.ag;
+
+import nachos.machine.Machine;
+import nachos.threads.DeadlineScheduler;
+import nachos.threads.KThread;
+import nachos.threads.Lock;
+import nachos.threads.SchedulingStats;
+import nachos.threads.ThreadedKernel;
+
+/**
+ * A grader for periodic real-time threads.
+ *
+ * <p>
+ * Admits three periodic tasks whose densities (cost over the shorter of period
+ * and deadline) add up to 0.65, checks that a fourth one that would overload
+ * the processor is rejected, and runs <i>jobs</i> jobs of each task against
+ * <i>hogs</i> CPU-bound background threads. One of the background threads
+ * repeatedly holds a lock that the tasks also need. Under
+ * <tt>DeadlineScheduler</tt> no deadline may be missed; under any other
+ * scheduler the misses are only reported. Run it with e.g.
+ * <tt>AutoGrader.testArgs = hogs=5,jobs=20</tt>.
+ */
+public class DeadlineGrader extends BasicTestGrader
+{
+  static boolean running = false;
+  static Lock lock = null;
+
+  public void run ()
+  {
+    final int hogs = getIntegerArgument("hogs");
+    final int jobs = getIntegerArgument("jobs");
+
+    running = true;
+    lock = new Lock();
+
+    ThreadHandler[] background = new ThreadHandler[hogs];
+    for (int i = 0; i < hogs; ++i)
+      background[i] = forkNewThread(new Hog(i == 0));
+
+    long[][] tasks = { { 5000, 5000, 1000 }, { 10000, 8000, 2000 },
+      { 20000, 20000, 4000 } };
+    ThreadHandler[] periodic = new ThreadHandler[tasks.length];
+    for (int i = 0; i < tasks.length; ++i)
+    {
+      KThread thread = new KThread(new Task(tasks[i][2], jobs));
+      assertTrue(thread.setPeriodic(tasks[i][0], tasks[i][1], tasks[i][2]),
+        "periodic task " + i + " was not admitted");
+      periodic[i] = getThreadHandler(thread);
+      thread.setName("Periodic").fork();
+    }
+
+    KThread extra = new KThread(new Task(1, 1));
+    assertTrue(!extra.setPeriodic(1000, 1000, 500),
+      "admitted a task that overloads the processor");
+
+    for (int i = 0; i < tasks.length; ++i)
+      periodic[i].thread.join();
+    running = false;
+    for (int i = 0; i < hogs; ++i)
+      background[i].thread.join();
+
+    System.out.println("\n" + ThreadedKernel.scheduler.getClass().getSimpleName()
+      + ": " + SchedulingStats.periodicJobs + " jobs, "
+      + SchedulingStats.deadlineMisses + " deadline misses");
+    if (ThreadedKernel.scheduler instanceof DeadlineScheduler)
+      assertTrue(SchedulingStats.deadlineMisses == 0, "missed a deadline");
+
+    done();
+  }
+
+  /**
+   * Use about <i>ticks</i> ticks of processor time, with interrupts enabled.
+   */
+  private static void burn (long ticks)
+  {
+    for (long i = 0; i < ticks; i += 10)
+    {
+      Machine.interrupt().disable();
+      Machine.interrupt().enable();
+    }
+  }
+
+  private class Task implements Runnable
+  {
+    Task (long cost, int jobs)
+    {
+      this.cost = cost;
+      this.jobs = jobs;
+    }
+
+    public void run ()
+    {
+      for (int i = 0; i < jobs; ++i)
+      {
+        lock.acquire();
+        burn(cost / 10);
+        lock.release();
+        burn(cost / 2);
+        KThread.waitForNextPeriod();
+      }
+    }
+
+    private long cost;
+    private int jobs;
+  }
+
+  private class Hog implements Runnable
+  {
+    Hog (boolean locking)
+    {
+      this.locking = locking;
+    }
+
+    public void run ()
+    {
+      while (running)
+      {
+        if (locking)
+        {
+          lock.acquire();
+          burn(300);
+          lock.release();
+        }
+        burn(1000);
+      }
+    }
+
+    private boolean locking;
+  }
+}
@@ -0,0 +1,59 @@
+package nachos.ag;
+
+import java.util.Random;
+import nachos.machine.Machine;
+import nachos.threads.ElevatorController;
+import nachos.threads.ElevatorSimulation;
+import nachos.threads.SchedulingStats;
+
+/**
+ * A large-scale elevator benchmark. Runs <tt>ElevatorController</tt> on a
+ * headless <tt>ElevatorSimulation</tt> with <i>elevators</i> elevators,
+ * <i>floors</i> floors and <i>riders</i> riders, each starting on a random
+ * floor and making <i>stops</i> random stops, and reports the simulated
+ * completion time and the host time it took. Run it with e.g.
+ * <tt>AutoGrader.testArgs = elevators=24,floors=200,riders=10000,stops=2</tt>;
+ * <i>seed</i> is optional.
+ */
+public class ElevatorGrader extends BasicTestGrader
+{
+  public void run ()
+  {
+    final int elevators = getIntegerArgument("elevators");
+    final int floors = getIntegerArgument("floors");
+    final int riders = getIntegerArgument("riders");
+    final int stops = getIntegerArgument("stops");
+    final long seed = hasArgument("seed") ? getIntegerArgument("seed") : 0;
+
+    assertTrue(elevators > 0 && floors > 1 && riders >= 0 && stops >= 0,
+      "invalid arguments");
+
+    Random random = new Random(seed);
+    ElevatorSimulation simulation =
+      new ElevatorSimulation(elevators, floors, new ElevatorController());
+    for (int i = 0; i < riders; ++i)
+    {
+      int floor = random.nextInt(floors);
+      int[] itinerary = new int[stops];
+      for (int j = 0, at = floor; j < stops; ++j)
+      {
+        itinerary[j] = (at + 1 + random.nextInt(floors - 1)) % floors;
+        at = itinerary[j];
+      }
+      simulation.addRider(floor, itinerary);
+    }
+
+    long startMillis = System.currentTimeMillis();
+    simulation.run();
+    long millis = System.currentTimeMillis() - startMillis;
+
+    System.out.println("\n" + elevators + " elevators, " + floors
+      + " floors, " + riders + " riders: completed in "
+      + simulation.getCompletionTime() + " ticks, " + millis
+      + " ms host time");
+    SchedulingStats.elevatorWait.print("Elevator wait");
+    SchedulingStats.elevatorTrip.print("Elevator trip");
+
+    done();
+  }
+}
@@ -0,0 +1,94 @@
+package nachos.ag;
+
+import nachos.machine.Machine;
+import nachos.threads.KThread;
+import nachos.threads.ThreadedKernel;
+
+/**
+ * An interactive latency benchmark for any scheduler.
+ *
+ * <p>
+ * Forks <i>hogs</i> CPU-bound threads, which only yield when the timer
+ * preempts them, and <i>interactive</i> threads, which repeatedly sleep for
+ * <i>sleep</i> ticks and then do a little work. The latency of an interactive
+ * thread is the time from when its sleep should have ended until it is
+ * actually running again. Run it with e.g.
+ * <tt>AutoGrader.testArgs = hogs=10,interactive=4,sleep=2000,rounds=50</tt>.
+ */
+public class LatencyGrader extends BasicTestGrader
+{
+  static boolean running = false;
+  static long samples = 0, totalLatency = 0, maxLatency = 0;
+
+  public void run ()
+  {
+    final int hogs = getIntegerArgument("hogs");
+    final int interactive = getIntegerArgument("interactive");
+    final int sleep = getIntegerArgument("sleep");
+    final int rounds = getIntegerArgument("rounds");
+
+    running = true;
+    long start = Machine.timer().getTime();
+
+    ThreadHandler[] hogThreads = new ThreadHandler[hogs];
+    for (int i = 0; i < hogs; ++i)
+      hogThreads[i] = forkNewThread(new Hog());
+    ThreadHandler[] interactiveThreads = new ThreadHandler[interactive];
+    for (int i = 0; i < interactive; ++i)
+      interactiveThreads[i] = forkNewThread(new Interactive(sleep, rounds));
+
+    for (int i = 0; i < interactive; ++i)
+      interactiveThreads[i].thread.join();
+    running = false;
+    for (int i = 0; i < hogs; ++i)
+      hogThreads[i].thread.join();
+
+    assertTrue(samples == (long) interactive * rounds,
+      "not every interactive round completed");
+
+    System.out.println("\n" + ThreadedKernel.scheduler.getClass().getSimpleName()
+      + ": " + hogs + " hogs, " + interactive + " interactive threads, "
+      + (Machine.timer().getTime() - start) + " ticks");
+    System.out.println("wakeup latency: mean " + (totalLatency / samples)
+      + " ticks, max " + maxLatency + " ticks over " + samples + " wakeups");
+
+    done();
+  }
+
+  private class Hog implements Runnable
+  {
+    public void run ()
+    {
+      while (running)
+      {
+        // burn time with interrupts enabled, so the timer can preempt us
+        Machine.interrupt().disable();
+        Machine.interrupt().enable();
+      }
+    }
+  }
+
+  private class Interactive implements Runnable
+  {
+    Interactive (int sleep, int rounds)
+    {
+      this.sleep = sleep;
+      this.rounds = rounds;
+    }
+
+    public void run ()
+    {
+      for (int i = 0; i < rounds; ++i)
+      {
+        long wake = Machine.timer().getTime() + sleep;
+        ThreadedKernel.alarm.waitUntil(sleep);
+        long latency = Machine.timer().getTime() - wake;
+        ++samples;
+        totalLatency += latency;
+        maxLatency = Math.max(maxLatency, latency);
+      }
+    }
+
+    private int sleep, rounds;
+  }
+}
@@ -0,0 +1,131 @@
+package nachos.ag;
+
+import nachos.machine.Machine;
+import nachos.threads.FairScheduler;
+import nachos.threads.KThread;
+import nachos.threads.Lock;
+import nachos.threads.LotteryScheduler;
+import nachos.threads.StrideScheduler;
+import nachos.threads.ThreadedKernel;
+
+/**
+ * A fairness and throughput benchmark for the proportional-share schedulers,
+ * <tt>LotteryScheduler</tt>, <tt>StrideScheduler</tt> and
+ * <tt>FairScheduler</tt>.
+ *
+ * <p>
+ * Forks <i>threads</i> CPU-bound threads holding 1, 2, ..., <i>threads</i>
+ * tickets (or weights). Each of them yields in a loop for <i>ticks</i> clock
+ * ticks, counting how many times it was dispatched. At the end the share of
+ * dispatches each thread got is compared with its share of the tickets, and
+ * the number of dispatches per 1000 ticks is reported as the throughput. Run
+ * it once per scheduler with e.g.
+ * <tt>AutoGrader.testArgs = threads=10,ticks=1000000</tt>.
+ *
+ * <p>
+ * With a <i>locks</i> argument, the threads also contend on that many locks:
+ * thread <i>i</i> takes lock <i>i</i> mod <i>locks</i> around each dispatch
+ * it counts. The timer often preempts a thread holding its lock, so the
+ * others queue on the lock, donate their tickets and are handed the lock on
+ * release. Neither should change the shares, which should still follow the
+ * tickets.
+ */
+public class ShareGrader extends BasicTestGrader
+{
+  static long end = 0;
+  static long[] count = null;
+  static Lock[] locks = null;
+
+  public void run ()
+  {
+    assertTrue(ThreadedKernel.scheduler instanceof LotteryScheduler
+      || ThreadedKernel.scheduler instanceof StrideScheduler
+      || ThreadedKernel.scheduler instanceof FairScheduler,
+      "this benchmark requires a proportional-share scheduler");
+
+    final int threads = getIntegerArgument("threads");
+    final int ticks = getIntegerArgument("ticks");
+
+    count = new long[threads];
+    if (hasArgument("locks"))
+    {
+      locks = new Lock[getIntegerArgument("locks")];
+      for (int i = 0; i < locks.length; ++i)
+        locks[i] = new Lock();
+    }
+    long wallStart = System.currentTimeMillis();
+    long start = Machine.timer().getTime();
+    end = start + ticks;
+
+    // fork them all at once, so that every thread runs for the whole period
+    ThreadHandler[] handlers = new ThreadHandler[threads];
+    boolean intStatus = Machine.interrupt().disable();
+    for (int i = 0; i < threads; ++i)
+      handlers[i] = forkNewThread(new Spinner(i), i + 1);
+    Machine.interrupt().restore(intStatus);
+
+    // sleep rather than join, so that no tickets are donated while measuring
+    ThreadedKernel.alarm.waitUntil(ticks);
+    for (int i = 0; i < threads; ++i)
+      handlers[i].thread.join();
+
+    long elapsed = Machine.timer().getTime() - start;
+    long wall = System.currentTimeMillis() - wallStart;
+
+    long total = 0;
+    for (int i = 0; i < threads; ++i)
+      total += count[i];
+    assertTrue(total > 0, "no thread was ever dispatched");
+
+    long tickets = (long) threads * (threads + 1) / 2;
+    double maxError = 0, sumError = 0;
+    System.out.println("\n" + ThreadedKernel.scheduler.getClass().getSimpleName()
+      + ": " + threads + " threads, "
+      + (locks != null ? locks.length + " locks, " : "") + elapsed + " ticks");
+    for (int i = 0; i < threads; ++i)
+    {
+      double ideal = (double) (i + 1) / tickets;
+      double share = (double) count[i] / total;
+      double error = Math.abs(share - ideal) / ideal;
+      maxError = Math.max(maxError, error);
+      sumError += error;
+      System.out.println("  tickets " + (i + 1) + ": dispatched " + count[i]
+        + " times, share " + format(share) + " (ideal " + format(ideal) + ")");
+    }
+    System.out.println("relative share error: mean " + format(sumError / threads)
+      + ", max " + format(maxError));
+    System.out.println("throughput: " + format(total * 1000.0 / elapsed)
+      + " dispatches per 1000 ticks, " + wall + " ms host time");
+
+    done();
+  }
+
+  private static String format (double value)
+  {
+    return String.format("%.4f", value);
+  }
+
+  private class Spinner implements Runnable
+  {
+    Spinner (int which)
+    {
+      this.which = which;
+    }
+
+    public void run ()
+    {
+      Lock lock = (locks != null) ? locks[which % locks.length] : null;
+      while (Machine.timer().getTime() < end)
+      {
+        if (lock != null)
+          lock.acquire();
+        ++count[which];
+        if (lock != null)
+          lock.release();
+        KThread.yield();
+      }
+    }
+
+    private int which;
+  }
+}
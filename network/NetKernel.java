@@ -83,22 +83,27 @@ public class NetKernel extends VMKernel {
     }
 
     private void pingServer() {
-	while (true) {
-	    MailMessage ping = postOffice.receive(1);
-
-	    MailMessage ack;
+	MailMessage[] pings = new MailMessage[8];
 
-	    try {
-		ack = new MailMessage(ping.packet.srcLink, ping.srcPort,
-				      ping.packet.dstLink, ping.dstPort,
-				      ping.contents);
-	    }
-	    catch (MalformedPacketException e) {
-		// should never happen...
-		continue;
+	while (true) {
+	    int count = postOffice.receive(1, pings);
+
+	    for (int i=0; i<count; i++) {
+		MailMessage ping = pings[i];
+		MailMessage ack;
+
+		try {
+		    ack = new MailMessage(ping.packet.srcLink, ping.srcPort,
+					  ping.packet.dstLink, ping.dstPort,
+					  ping.contents);
+		}
+		catch (MalformedPacketException e) {
+		    // should never happen...
+		    continue;
+		}
+
+		postOffice.send(ack);
 	    }
-
-	    postOffice.send(ack);
 	}	
     }
     
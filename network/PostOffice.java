@@ -3,6 +3,8 @@ package nachos.network;
 import nachos.machine.*;
 import nachos.threads.*;
 
+import java.util.ArrayList;
+
 /**
  * A collection of message queues, one for each local port. A
  * <tt>PostOffice</tt> interacts directly with the network hardware. Because
@@ -14,6 +16,11 @@ import nachos.threads.*;
  * from the network and to place them in the appropriate queues. This cannot
  * be done in the receive interrupt handler because each queue (implemented
  * with a <tt>SynchList</tt>) is protected by a lock.
+ *
+ * <p>
+ * The queues are unbounded. There is only one postal worker for all ports,
+ * so if it blocked on the full queue of one slow reader, mail for every
+ * other port would stop as well.
  */
 public class PostOffice {
     /**
@@ -66,6 +73,33 @@ public class PostOffice {
 	return mail;
     }
 
+    /**
+     * Retrieve up to <tt>mail.length</tt> messages on the specified port,
+     * waiting until at least one has arrived. A burst of mail is taken in a
+     * single hand-off, instead of one wakeup per message.
+     *
+     * @param	port	the port on which to wait for messages.
+     * @param	mail	the array to store the messages received in.
+     *
+     * @return	the number of messages received.
+     */
+    public int receive(int port, MailMessage[] mail) {
+	Lib.assertTrue(port >= 0 && port < queues.length && mail.length > 0);
+
+	Lib.debug(dbgNet, "waiting for mail on port " + port);
+
+	ArrayList<Object> batch = new ArrayList<Object>(mail.length);
+	int count = queues[port].drainTo(batch, mail.length);
+	for (int i=0; i<count; i++) {
+	    mail[i] = (MailMessage) batch.get(i);
+
+	    if (Lib.test(dbgNet))
+		System.out.println("got mail on port " + port + ": " + mail[i]);
+	}
+
+	return count;
+    }
+
     /**
      * Wait for incoming messages, and then put them in the correct mailbox.
      */
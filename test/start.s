@@ -67,3 +67,8 @@ name:				; \
 	SYSCALLSTUB(mmap, syscallMmap)
 	SYSCALLSTUB(connect, syscallConnect)
 	SYSCALLSTUB(accept, syscallAccept)
+	SYSCALLSTUB(dup, syscallDup)
+	SYSCALLSTUB(dup2, syscallDup2)
+	SYSCALLSTUB(pipe, syscallPipe)
+	SYSCALLSTUB(munmap, syscallMunmap)
+	SYSCALLSTUB(fork, syscallFork)
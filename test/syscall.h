@@ -25,6 +25,11 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallDup		13
+#define syscallDup2		14
+#define syscallPipe		15
+#define syscallMunmap		16
+#define syscallFork		17
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -90,6 +95,16 @@ void exit(int status);
  */
 int exec(char *file, int argc, char *argv[]);
 
+/**
+ * Create a child process that is a copy of the current process: the same
+ * program, memory, registers, open files and maps. The two share all of
+ * their memory until one of them writes to a page, which then gets copied.
+ *
+ * Returns the child's process ID to the parent and 0 to the child, or -1 if
+ * an error occurred.
+ */
+int fork();
+
 /**
  * Suspend execution of the current process until the child process specified
  * by the processID argument has exited. If the child has already exited by the
@@ -224,10 +239,23 @@ int unlink(char *name);
  * When the file descriptor is closed, all remaining dirty pages of the map
  * will be flushed to disk and the map will be removed.
  *
+ * The address must be page-aligned and above the program's stack and
+ * arguments, and the map must not overlap another one. Pages are read from
+ * the file when first touched, and processes mapping the same file share
+ * them.
+ *
  * Returns the length of the file on success, or -1 if an error occurred.
  */
 int mmap(int fileDescriptor, char *address);
 
+/**
+ * Remove the map starting at address, flushing its dirty pages to disk. The
+ * file descriptor stays open, and read() and write() on it work again.
+ *
+ * Returns 0 on success, or -1 if no map starts at address.
+ */
+int munmap(char *address);
+
 /**
  * Attempt to initiate a new connection to the specified port on the specified
  * remote host, and return a new file descriptor referring to the connection.
@@ -257,6 +285,38 @@ int connect(int host, int port);
  */
 int accept(int port);
 
+/**
+ * Return a new file descriptor, the lowest one not in use, that refers to the
+ * same open file as fileDescriptor. The two file descriptors share the file's
+ * position; the file is closed when both have been closed.
+ *
+ * Returns the new file descriptor, or -1 if an error occurred.
+ */
+int dup(int fileDescriptor);
+
+/**
+ * Make newFileDescriptor refer to the same open file as fileDescriptor, first
+ * closing newFileDescriptor if it was open. Does nothing if the two are
+ * equal.
+ *
+ * Returns newFileDescriptor, or -1 if an error occurred.
+ */
+int dup2(int fileDescriptor, int newFileDescriptor);
+
+/**
+ * Create a pipe, and store a file descriptor for its read end in
+ * fileDescriptors[0] and one for its write end in fileDescriptors[1].
+ * Bytes written to the write end can be read from the read end, in order.
+ *
+ * read() on the read end waits until at least one byte is available, and
+ * returns 0 once every descriptor for the write end is closed and the pipe is
+ * empty. write() on the write end waits until all of its bytes fit in the
+ * pipe, and fails once every descriptor for the read end is closed.
+ *
+ * Returns 0 on success, or -1 if an error occurred.
+ */
+int pipe(int fileDescriptors[2]);
+
 #endif /* START_S */
 
 #endif /* SYSCALL_H */
@@ -0,0 +1,92 @@
+/*
+ *  Test dup() and dup2(): the descriptors share the file's position, and the
+ *  file stays open until every descriptor for it, including those inherited
+ *  by a forked child, is closed.
+ */
+
+#include "stdio.h"
+#include "stdlib.h"
+#include "coffgrader.h"
+
+int main() {
+  char filename[20], buf[20];
+  int f, g, h, pid, status;
+
+  strcpy(filename, "dupfile");
+  sprintf(filename + strlen(filename), "%d", random(10000));
+  f = creat(filename);
+  assertTrue(f > 1);
+  assertTrue(write(f, "abcdefgh", 8) == 8);
+  close(f);
+
+  // dup: one position, and the file outlives the first close
+  f = open(filename);
+  assertTrue(f > 1);
+  g = dup(f);
+  assertTrue(g > 1 && g != f);
+  assertTrue(read(f, buf, 3) == 3 && strncmp(buf, "abc", 3) == 0);
+  assertTrue(read(g, buf, 3) == 3 && strncmp(buf, "def", 3) == 0);
+  close(f);
+  assertTrue(read(f, buf, 1) == -1);
+  assertTrue(read(g, buf, 3) == 2 && strncmp(buf, "gh", 2) == 0);
+  assertTrue(read(g, buf, 1) == 0);
+  close(g);
+  assertTrue(read(g, buf, 1) == -1);
+  assertTrue(dup(g) == -1);
+
+  // dup2 closes the file the target referred to
+  f = open(filename);
+  h = open(filename);
+  assertTrue(f > 1 && h > 1);
+  assertTrue(read(h, buf, 4) == 4);
+  assertTrue(dup2(f, h) == h);
+  assertTrue(read(f, buf, 1) == 1 && buf[0] == 'a');
+  assertTrue(read(h, buf, 1) == 1 && buf[0] == 'b');
+  assertTrue(dup2(f, f) == f);
+  close(f);
+  assertTrue(read(h, buf, 1) == 1 && buf[0] == 'c');
+  close(h);
+  assertTrue(read(h, buf, 1) == -1);
+
+  // dup2 onto a descriptor beyond the initial table
+  f = open(filename);
+  assertTrue(dup2(f, 100) == 100);
+  close(f);
+  assertTrue(read(100, buf, 2) == 2 && strncmp(buf, "ab", 2) == 0);
+  close(100);
+  assertTrue(read(100, buf, 1) == -1);
+  assertTrue(dup2(100, 101) == -1);
+  assertTrue(dup2(stdout, -1) == -1);
+
+  // a forked child shares the position, and its close leaves ours open
+  f = open(filename);
+  assertTrue(f > 1);
+  pid = fork();
+  assertTrue(pid >= 0);
+  if (pid == 0) {
+    assertTrue(read(f, buf, 2) == 2 && strncmp(buf, "ab", 2) == 0);
+    close(f);
+    exit(0);
+  }
+  assertTrue(join(pid, &status) == 1 && status == 0);
+  assertTrue(read(f, buf, 2) == 2 && strncmp(buf, "cd", 2) == 0);
+  close(f);
+
+  // writes through either descriptor go to the shared position
+  f = open(filename);
+  g = dup(f);
+  assertTrue(write(f, "12", 2) == 2);
+  assertTrue(write(g, "34", 2) == 2);
+  close(g);
+  close(f);
+  f = open(filename);
+  assertTrue(read(f, buf, 8) == 8 && strncmp(buf, "1234efgh", 8) == 0);
+  close(f);
+
+  unlink(filename);
+  assertTrue(open(filename) == -1);
+
+  done();
+
+  return 0;
+}
@@ -0,0 +1,74 @@
+/*
+ *  Test fork(): the child starts as a copy of the parent, and writes made by
+ *  either one after the fork, to data, bss or stack pages, are not seen by
+ *  the other.
+ */
+
+#include "stdio.h"
+#include "stdlib.h"
+#include "coffgrader.h"
+
+int data = 1;
+int bss[1024];
+
+int main() {
+  int local = 10, pid, status, i;
+  bss[0] = 100;
+
+  pid = fork();
+  assertTrue(pid >= 0);
+  if (pid == 0) {
+    assertTrue(data == 1 && local == 10 && bss[0] == 100);
+    data = 2;
+    local = 20;
+    bss[0] = 200;
+    bss[1023] = 200;
+    assertTrue(data == 2 && local == 20 && bss[0] == 200);
+    exit(data + local + bss[1023]);
+  }
+  data = 3;
+  local = 30;
+  bss[0] = 300;
+  assertTrue(join(pid, &status) == 1);
+  assertTrue(status == 222);
+  assertTrue(data == 3 && local == 30 && bss[0] == 300 && bss[1023] == 0);
+  assertTrue(join(pid, &status) == -1);
+
+  // a child's child copies pages that are already shared
+  pid = fork();
+  assertTrue(pid >= 0);
+  if (pid == 0) {
+    int grandchild = fork();
+    assertTrue(grandchild >= 0);
+    if (grandchild == 0) {
+      data = 5;
+      exit(data);
+    }
+    assertTrue(join(grandchild, &status) == 1);
+    assertTrue(status == 5 && data == 3);
+    data = 4;
+    exit(data);
+  }
+  assertTrue(join(pid, &status) == 1);
+  assertTrue(status == 4 && data == 3);
+
+  // several children at once, each writing its own copy of the same page
+  int pids[5];
+  for (i = 0; i < 5; ++i) {
+    pids[i] = fork();
+    assertTrue(pids[i] >= 0);
+    if (pids[i] == 0) {
+      bss[0] = i;
+      exit(bss[0]);
+    }
+  }
+  for (i = 0; i < 5; ++i) {
+    assertTrue(join(pids[i], &status) == 1);
+    assertTrue(status == i);
+  }
+  assertTrue(bss[0] == 300);
+
+  done();
+
+  return 0;
+}
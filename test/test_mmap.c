@@ -0,0 +1,94 @@
+/*
+ *  Test mmap() and munmap(): writes to the map are seen by read() through
+ *  another descriptor and by a forked child, write() through another
+ *  descriptor is seen in the map, and munmap() or close() writes the map
+ *  back to the file.
+ */
+
+#include "stdio.h"
+#include "stdlib.h"
+#include "coffgrader.h"
+
+#define MAP ((char *) 0x100000)
+#define LENGTH 3000
+
+char buf[LENGTH];
+
+int main() {
+  char filename[20];
+  int f, g, h, pid, status;
+
+  strcpy(filename, "mmapfile");
+  sprintf(filename + strlen(filename), "%d", random(10000));
+  f = creat(filename);
+  assertTrue(f > 1);
+  memset(buf, 'x', LENGTH);
+  assertTrue(write(f, buf, LENGTH) == LENGTH);
+  close(f);
+
+  f = open(filename);
+  g = open(filename);
+  assertTrue(f > 1 && g > 1);
+  assertTrue(mmap(f, MAP) == LENGTH);
+  assertTrue(mmap(f, MAP + 0x10000) == -1);
+  assertTrue(mmap(g, MAP + 1) == -1);
+  assertTrue(mmap(g, MAP + 0x400) == -1);
+  assertTrue(mmap(g, (char *) 0) == -1);
+  assertTrue(read(f, buf, 1) == -1);
+  assertTrue(write(f, buf, 1) == -1);
+
+  // writes to the map are seen through the other descriptor at once
+  assertTrue(MAP[0] == 'x' && MAP[LENGTH-1] == 'x');
+  MAP[0] = 'M';
+  MAP[LENGTH-1] = 'N';
+  assertTrue(read(g, buf, 1) == 1 && buf[0] == 'M');
+
+  // and writes through it are seen in the map
+  assertTrue(MAP[1500] == 'x');
+  assertTrue(read(g, buf, 1499) == 1499);
+  assertTrue(write(g, "W", 1) == 1);
+  assertTrue(MAP[1500] == 'W');
+  assertTrue(read(g, buf, 599) == 599);
+  assertTrue(write(g, "V", 1) == 1);
+  assertTrue(MAP[2100] == 'V');
+
+  // a forked child shares the mapped pages
+  pid = fork();
+  assertTrue(pid >= 0);
+  if (pid == 0) {
+    assertTrue(MAP[0] == 'M' && MAP[1500] == 'W');
+    MAP[1024] = 'C';
+    exit(0);
+  }
+  assertTrue(join(pid, &status) == 1 && status == 0);
+  assertTrue(MAP[1024] == 'C');
+
+  // munmap writes the map back, and the descriptor works again
+  assertTrue(munmap(MAP) == 0);
+  assertTrue(munmap(MAP) == -1);
+  close(g);
+  g = open(filename);
+  assertTrue(read(g, buf, LENGTH) == LENGTH);
+  assertTrue(buf[0] == 'M' && buf[1024] == 'C' && buf[1500] == 'W');
+  assertTrue(buf[2100] == 'V' && buf[LENGTH-1] == 'N' && buf[1] == 'x');
+  close(g);
+  assertTrue(read(f, buf, 2) == 2 && buf[0] == 'M' && buf[1] == 'x');
+
+  // and so does closing the mapped descriptor
+  h = open(filename);
+  assertTrue(mmap(h, MAP) == LENGTH);
+  MAP[5] = 'Z';
+  close(h);
+  assertTrue(munmap(MAP) == -1);
+  g = open(filename);
+  assertTrue(read(g, buf, 6) == 6 && buf[0] == 'M' && buf[5] == 'Z');
+  close(g);
+  close(f);
+
+  unlink(filename);
+  assertTrue(open(filename) == -1);
+
+  done();
+
+  return 0;
+}
@@ -0,0 +1,79 @@
+/*
+ *  Test pipe(): two forked children connected by a pipe on their standard
+ *  output and input, as a shell would run "writer | reader". The stream is
+ *  larger than the pipe, so the writer has to wait for the reader, and the
+ *  reader sees end of file only once every write end is closed.
+ */
+
+#include "stdio.h"
+#include "stdlib.h"
+#include "coffgrader.h"
+
+#define LINES 300
+
+int main() {
+  int fds[2], writer, reader, status, i, n;
+  char buf[64];
+
+  assertTrue(pipe(fds) == 0);
+  assertTrue(fds[0] > 1 && fds[1] > 1 && fds[0] != fds[1]);
+
+  writer = fork();
+  assertTrue(writer >= 0);
+  if (writer == 0) {
+    assertTrue(dup2(fds[1], stdout) == stdout);
+    close(fds[0]);
+    close(fds[1]);
+    for (i = 0; i < LINES; ++i)
+      printf("line %d of the pipe test\n", i);
+    exit(0);
+  }
+
+  reader = fork();
+  assertTrue(reader >= 0);
+  if (reader == 0) {
+    int total = 0, lines = 0;
+    assertTrue(dup2(fds[0], stdin) == stdin);
+    close(fds[0]);
+    close(fds[1]);
+    while ((n = read(stdin, buf, sizeof(buf))) > 0) {
+      for (i = 0; i < n; ++i) {
+        if (buf[i] == '\n')
+          ++lines;
+      }
+      total += n;
+    }
+    assertTrue(n == 0 && lines == LINES);
+    exit(total);
+  }
+
+  // the reader sees end of file only once these are closed too
+  close(fds[0]);
+  close(fds[1]);
+  assertTrue(join(writer, &status) == 1 && status == 0);
+  assertTrue(join(reader, &status) == 1);
+  n = 0;
+  for (i = 0; i < LINES; ++i) {
+    sprintf(buf, "line %d of the pipe test\n", i);
+    n += strlen(buf);
+  }
+  assertTrue(status == n);
+
+  // end of file after the buffered bytes, and no writes without a reader
+  assertTrue(pipe(fds) == 0);
+  assertTrue(write(fds[1], "abc", 3) == 3);
+  close(fds[1]);
+  assertTrue(read(fds[0], buf, sizeof(buf)) == 3);
+  assertTrue(strncmp(buf, "abc", 3) == 0);
+  assertTrue(read(fds[0], buf, sizeof(buf)) == 0);
+  close(fds[0]);
+
+  assertTrue(pipe(fds) == 0);
+  close(fds[0]);
+  assertTrue(write(fds[1], "abc", 3) == -1);
+  close(fds[1]);
+
+  done();
+
+  return 0;
+}
@@ -1,10 +1,18 @@
 package nachos.threads;
 
 import nachos.machine.*;
-import java.util.PriorityQueue; //ExperimentNachos
+
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
+ *
+ * <p>
+ * Pending timeouts are kept in a hashed timing wheel: a circular array of
+ * slots, each covering <tt>slotTicks</tt> ticks, where a timeout is linked
+ * into the slot its expiry time hashes to. Scheduling and cancelling a
+ * timeout take constant time, and each timer interrupt only visits the slots
+ * that have come due since the previous one, so thousands of pending
+ * timeouts stay cheap.
  */
 public class Alarm {
     /**
@@ -14,12 +22,15 @@ public class Alarm {
      * <p><b>Note</b>: Nachos will not function correctly with more than one
      * alarm.
      */
-	private static boolean inited=false;
     public Alarm() {
-		if(inited) throw new Error();
-		inited=true;
-		waitingList=new PriorityQueue<>();
-		lock=new Lock();
+	if (inited)
+	    throw new Error();
+	inited = true;
+
+	for (int i=0; i<wheelSlots; i++)
+	    wheel[i] = new Timeout();
+	swept = Machine.timer().getTime() / slotTicks - 1;
+
 	Machine.timer().setInterruptHandler(new Runnable() {
 		public void run() { timerInterrupt(); }
 	    });
@@ -27,26 +38,81 @@ public class Alarm {
 
     /**
      * The timer interrupt handler. This is called by the machine's timer
-     * periodically (approximately every 500 clock ticks). Causes the current
-     * thread to yield, forcing a context switch if there is another thread
-     * that should be run.
+     * periodically (approximately every 500 clock ticks). Fires every timeout
+     * that has expired, then causes the current thread to yield, forcing a
+     * context switch if there is another thread that should be run.
      */
     public void timerInterrupt() {
-	//lock.acquire();
-	//System.out.println("Time!");
 	boolean intStatus = Machine.interrupt().disable();
-	long curr = Machine.timer().getTime();
-	//System.out.println(waitingList.peek());
-	while(waitingList.peek()!=null && waitingList.peek().isTimeout(curr)){
-		//System.out.println("Poll!");
-		cntr--;
-		waitingList.poll().thread.ready();
+
+	long time = Machine.timer().getTime();
+	long now = time / slotTicks;
+
+	// unlink everything that has expired before running any handler, so
+	// that handlers may freely schedule and cancel timeouts
+	Timeout expired = null;
+	for (long t=swept+1, n=0; t<=now && n<wheelSlots; t++, n++) {
+	    Timeout slot = wheel[(int) (t & (wheelSlots-1))];
+	    for (Timeout timeout=slot.next; timeout!=slot; ) {
+		Timeout next = timeout.next;
+		if (timeout.time <= time) {
+		    timeout.unlink();
+		    timeout.next = expired;
+		    expired = timeout;
+		}
+		timeout = next;
+	    }
 	}
-	//lock.release();
+	// the current slot may still hold timeouts later in this slot
+	swept = now - 1;
+
+	// fire them in wheel order
+	Timeout fired = null;
+	while (expired != null) {
+	    Timeout next = expired.next;
+	    expired.next = fired;
+	    fired = expired;
+	    expired = next;
+	}
+	for (; fired != null; fired = fired.next)
+	    fired.handler.run();
+
 	Machine.interrupt().restore(intStatus);
 	KThread.currentThread().yield();
     }
 
+    /**
+     * Arrange for <i>handler</i> to be run in the timer interrupt handler,
+     * during the first timer interrupt where
+     *
+     * <p><blockquote>
+     * (current time) >= (schedule called time)+(x)
+     * </blockquote>
+     *
+     * <p>
+     * The handler runs with interrupts disabled, so it must not block; it
+     * may, for example, wake up a sleeping thread.
+     *
+     * @param	x	the minimum number of clock ticks to wait.
+     * @param	handler	the handler to run.
+     * @return	a handle that can be used to cancel the timeout.
+     */
+    public Timeout schedule(long x, Runnable handler) {
+	Lib.assertTrue(x >= 0 && handler != null);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	Timeout timeout = new Timeout(Machine.timer().getTime() + x, handler);
+
+	// never link into a slot that has already been swept
+	long tick = Math.max(timeout.time / slotTicks, swept + 1);
+	timeout.link(wheel[(int) (tick & (wheelSlots-1))]);
+
+	Machine.interrupt().restore(intStatus);
+
+	return timeout;
+    }
+
     /**
      * Put the current thread to sleep for at least <i>x</i> ticks,
      * waking it up in the timer interrupt handler. The thread must be
@@ -57,50 +123,200 @@ public class Alarm {
      * (current time) >= (WaitUntil called time)+(x)
      * </blockquote>
      *
-     * @param	x	the minimum number of clock ticks to wait.
+     * @param	x	the minimum number of clock ticks to wait. A negative
+     *			value is treated as 0.
      *
      * @see	nachos.machine.Timer#getTime()
      */
     public void waitUntil(long x) {
-	// for now, cheat just to get something working (busy waiting is bad)
+	if (x < 0)
+	    x = 0;
+
 	boolean intStatus = Machine.interrupt().disable();
-	long wakeTime = Machine.timer().getTime() + x;
-	
-	//lock.acquire();
-	//System.out.println("Push!");
-	waitingList.add(new WaitingThread(KThread.currentThread(),wakeTime));
+
+	final KThread thread = KThread.currentThread();
+	schedule(x, new Runnable() {
+		public void run() { thread.ready(); }
+	    });
 	KThread.sleep();
+
 	Machine.interrupt().restore(intStatus);
-	//while (wakeTime > Machine.timer().getTime())
-	//   KThread.yield();
     }
-	private class WaitingThread implements Comparable{
-		public KThread thread;
-		public long timeout;
-		public WaitingThread(KThread th, long to){
-			thread=th;
-			timeout=to;
-			
-		}
-		public int compareTo(Object obj){
-			if(!(obj instanceof WaitingThread)) return 0;
-			WaitingThread wt=(WaitingThread)obj;
-			if(timeout<wt.timeout) return -1;
-			if(timeout==wt.timeout) return 0;
-			if(timeout>wt.timeout) return 1;
-			return 0;
-		}
-		public boolean isTimeout(long curr){
-			return curr>=timeout;
-			
-		}
-		public long getTimeout(){
-			return timeout;
-			
+
+    /**
+     * Put the current thread to sleep on <i>waitQueue</i> for at most
+     * <i>x</i> ticks. If the thread has not been returned by
+     * <tt>waitQueue.nextThread()</tt> by then, it is removed from the queue
+     * and woken up in the timer interrupt handler. Interrupts must be
+     * disabled.
+     *
+     * @param	waitQueue	the queue to wait on.
+     * @param	x	the maximum number of clock ticks to wait.
+     * @return	<tt>true</tt> if the thread was returned by
+     *		<tt>nextThread()</tt>, or <tt>false</tt> if the wait timed
+     *		out.
+     */
+    public boolean waitOn(final ThreadQueue waitQueue, long x) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	final KThread thread = KThread.currentThread();
+	final boolean[] timedOut = { false };
+
+	waitQueue.waitForAccess(thread);
+	Timeout timeout = schedule(x, new Runnable() {
+		public void run() {
+		    if (waitQueue.remove(thread)) {
+			timedOut[0] = true;
+			thread.ready();
+		    }
 		}
+	    });
+	KThread.sleep();
+	timeout.cancel();
+
+	return !timedOut[0];
+    }
+
+    /**
+     * Return the number of timeouts that are scheduled and have neither
+     * fired nor been cancelled.
+     *
+     * @return	the number of pending timeouts.
+     */
+    public int getPendingCount() {
+	return pending;
+    }
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+	final Alarm alarm = ThreadedKernel.alarm;
+	final int revolution = wheelSlots * slotTicks;
+	int pending = alarm.getPendingCount();
+
+	// timeouts one and several revolutions apart share a slot, and each
+	// must wait for its own time
+	long[] delays = { 1000, 1000 + revolution, 1000 + 3*revolution + 10,
+			  revolution - 1, 5 };
+	final long[] fired = new long[delays.length];
+	Timeout[] timeouts = new Timeout[delays.length];
+	long start = Machine.timer().getTime();
+	for (int i=0; i<delays.length; i++) {
+	    final int n = i;
+	    timeouts[i] = alarm.schedule(delays[i], new Runnable() {
+		    public void run() {
+			fired[n] = Machine.timer().getTime();
+		    }
+		});
 	}
-	private PriorityQueue<WaitingThread> waitingList;
-	private Lock lock;
-	private int cntr=0;
-	
+
+	// a cancelled timeout never fires
+	final boolean[] cancelledFired = { false };
+	Timeout cancelled = alarm.schedule(2000, new Runnable() {
+		public void run() { cancelledFired[0] = true; }
+	    });
+	Lib.assertTrue(alarm.getPendingCount() == pending + delays.length + 1);
+	Lib.assertTrue(cancelled.cancel());
+	Lib.assertTrue(!cancelled.cancel() && !cancelled.isPending());
+	Lib.assertTrue(alarm.getPendingCount() == pending + delays.length);
+
+	alarm.waitUntil(1000 + 3*revolution + 10 + 2*Stats.TimerTicks);
+
+	for (int i=0; i<delays.length; i++) {
+	    Lib.assertTrue(!timeouts[i].isPending());
+	    Lib.assertTrue(fired[i] >= start + delays[i]);
+	    Lib.assertTrue(fired[i] < start + delays[i] + 2*Stats.TimerTicks);
+	}
+	Lib.assertTrue(!cancelledFired[0]);
+	Lib.assertTrue(!timeouts[0].cancel());
+	Lib.assertTrue(alarm.getPendingCount() == pending);
+
+	// a negative wait returns at the next timer interrupt
+	start = Machine.timer().getTime();
+	alarm.waitUntil(-100);
+	Lib.assertTrue(Machine.timer().getTime() - start < 2*Stats.TimerTicks);
+    }
+
+    /**
+     * A timeout scheduled with <tt>schedule()</tt>.
+     */
+    public class Timeout {
+	/**
+	 * Allocate the list head of a wheel slot.
+	 */
+	private Timeout() {
+	    this(0, null);
+	    prev = next = this;
+	}
+
+	private Timeout(long time, Runnable handler) {
+	    this.time = time;
+	    this.handler = handler;
+	}
+
+	/**
+	 * Cancel this timeout, if it has not fired yet.
+	 *
+	 * @return	<tt>true</tt> if the timeout was cancelled, or
+	 *		<tt>false</tt> if it had already fired or been cancelled.
+	 */
+	public boolean cancel() {
+	    boolean intStatus = Machine.interrupt().disable();
+
+	    boolean wasPending = isPending();
+	    if (wasPending)
+		unlink();
+
+	    Machine.interrupt().restore(intStatus);
+	    return wasPending;
+	}
+
+	/**
+	 * Test whether this timeout has neither fired nor been cancelled.
+	 *
+	 * @return	<tt>true</tt> if this timeout is still pending.
+	 */
+	public boolean isPending() {
+	    return prev != null;
+	}
+
+	/**
+	 * Return the time at which this timeout expires.
+	 *
+	 * @return	the expiry time, in ticks.
+	 */
+	public long getTime() {
+	    return time;
+	}
+
+	private void link(Timeout slot) {
+	    prev = slot.prev;
+	    next = slot;
+	    prev.next = this;
+	    slot.prev = this;
+	    pending++;
+	}
+
+	private void unlink() {
+	    prev.next = next;
+	    next.prev = prev;
+	    prev = next = null;
+	    pending--;
+	}
+
+	private long time;
+	private Runnable handler;
+	private Timeout prev = null, next = null;
+    }
+
+    private static final int wheelSlots = 256;
+    private static final int slotTicks = 64;
+
+    private static boolean inited = false;
+
+    private Timeout[] wheel = new Timeout[wheelSlots];
+    /** The last wheel tick whose slot holds no expired timeouts. */
+    private long swept;
+    private int pending = 0;
 }
@@ -1,5 +1,6 @@
 package nachos.threads;
 import nachos.ag.BoatGrader;
+import nachos.machine.Lib;
 import java.util.LinkedList;
 import java.util.Iterator;
 import java.util.Random;
@@ -23,10 +24,24 @@ public class Boat
 	static PType edgeType=NONE;
 	static int boatMount=0;
 	static int boatSide=0;
-	static Condition boatArriveO;
-	static Condition boatArriveM;
+	static Condition2 boatArriveO;
+	static Condition2 boatArriveM;
 	static boolean success=false;
 	static Lock goOnBoat;
+	
+	//State of the scalable mode. Every decision names the one role that may act next.
+	private static enum Turn{
+		CHILD_PILOT,CHILD_PASSENGER,ADULT,FERRY,DONE;
+	};
+	static final int scaleWindow=64; //People of each kind standing on Oahu at once.
+	static Turn turn;
+	static int adultsOahu,childrenOahu;
+	static int adultsUnforked,childrenUnforked;
+	static int adultThreadsOahu,childThreadsOahu;
+	static int liveThreads;
+	static boolean passengerAboard,ferryWaiting;
+	static Lock crossing;
+	static Condition2 adultReady,childReady,boarded,landed,ferryCalled,allGone;
     public static void selfTest()
     {
 	BoatGrader b = new BoatGrader();
@@ -69,8 +84,8 @@ public class Boat
 	boatMount=0;
 	boatSide=0;
 	goOnBoat=new Lock();
-	boatArriveO=new Condition(goOnBoat);
-	boatArriveM=new Condition(goOnBoat);
+	boatArriveO=new Condition2(goOnBoat);
+	boatArriveM=new Condition2(goOnBoat);
 	// Instantiate global variables here
 	
 	// Create threads here. See section 3.4 of the Nachos for Java
@@ -309,6 +324,182 @@ public class Boat
 	//Debug: System.out.println("WTF?");
     }
 
+    /**
+     * A version of <tt>begin()</tt> that scales to many thousands of people.
+     * Each person is still a thread, but only <tt>scaleWindow</tt> adults and
+     * <tt>scaleWindow</tt> children stand on Oahu at once: whenever one of
+     * them leaves, the next in line is forked, so the number of live threads
+     * stays far below <tt>TCB.maxThreads</tt>. Children cross in pairs and the
+     * passenger rows back; adults cross alone and a single child waiting on
+     * Molokai (the ferry) rows back. Instead of waking everybody after every
+     * trip, each trip names the one role that can act next and wakes one
+     * thread waiting in that role.
+     */
+    public static void beginScalable( int adults, int children, BoatGrader b )
+    {
+	Lib.assertTrue(children>=2 || adults+children<=1, "Mission Impossible.");
+	bg = b;
+	adultsOahu=adults;
+	childrenOahu=children;
+	adultsUnforked=adults;
+	childrenUnforked=children;
+	adultThreadsOahu=0;
+	childThreadsOahu=0;
+	liveThreads=0;
+	passengerAboard=false;
+	ferryWaiting=false;
+	crossing=new Lock();
+	adultReady=new Condition2(crossing);
+	childReady=new Condition2(crossing);
+	boarded=new Condition2(crossing);
+	landed=new Condition2(crossing);
+	ferryCalled=new Condition2(crossing);
+	allGone=new Condition2(crossing);
+	
+	crossing.acquire();
+	if(adults+children==0) turn=Turn.DONE;
+	else nextOnOahu();
+	refillOahu();
+	while(turn!=Turn.DONE || liveThreads>0){
+		allGone.sleep();
+	}
+	crossing.release();
+    }
+    
+    /**
+     * Fork people until <tt>scaleWindow</tt> of each kind stand on Oahu, or
+     * nobody is left to fork. Called with <tt>crossing</tt> held.
+     */
+    static void refillOahu()
+    {
+	while(adultThreadsOahu<scaleWindow && adultsUnforked>0){
+		adultsUnforked--;
+		adultThreadsOahu++;
+		liveThreads++;
+		new KThread(new Runnable(){
+			public void run(){ ScalableAdultItinerary(); }
+		}).setName("adult").fork();
+	}
+	while(childThreadsOahu<scaleWindow && childrenUnforked>0){
+		childrenUnforked--;
+		childThreadsOahu++;
+		liveThreads++;
+		new KThread(new Runnable(){
+			public void run(){ ScalableChildItinerary(); }
+		}).setName("child").fork();
+	}
+    }
+    
+    /**
+     * The boat is on Oahu: decide who takes it next, and wake one of them.
+     * Children go in pairs while they can; an adult goes once a single child
+     * is left, since the ferry will bring the boat back.
+     */
+    static void nextOnOahu()
+    {
+	if(childrenOahu>=2 || (childrenOahu==1 && adultsOahu==0)){
+		turn=Turn.CHILD_PILOT;
+		childReady.wake();
+	}else{
+		turn=Turn.ADULT;
+		adultReady.wake();
+	}
+    }
+    
+    /**
+     * Someone has just landed on Molokai: finish if Oahu is empty.
+     */
+    static boolean checkDone()
+    {
+	if(adultsOahu>0 || childrenOahu>0) return false;
+	turn=Turn.DONE;
+	ferryCalled.wakeAll();
+	return true;
+    }
+    
+    static void leave()
+    {
+	liveThreads--;
+	if(liveThreads==0 && turn==Turn.DONE) allGone.wake();
+	crossing.release();
+    }
+    
+    static void ScalableAdultItinerary()
+    {
+	bg.initializeAdult(); //Required for autograder interface. Must be the first thing called.
+	crossing.acquire();
+	while(turn!=Turn.ADULT){
+		adultReady.sleep();
+	}
+	bg.AdultRowToMolokai();
+	adultsOahu--;
+	adultThreadsOahu--;
+	refillOahu();
+	if(!checkDone()){
+		turn=Turn.FERRY;
+		ferryCalled.wake();
+	}
+	leave();
+    }
+    
+    static void ScalableChildItinerary()
+    {
+	bg.initializeChild(); //Required for autograder interface. Must be the first thing called.
+	crossing.acquire();
+	while(true){
+		while(turn!=Turn.CHILD_PILOT && turn!=Turn.CHILD_PASSENGER){
+			childReady.sleep();
+		}
+		if(turn==Turn.CHILD_PASSENGER){
+			//Climb in and let the pilot row.
+			turn=null;
+			passengerAboard=true;
+			boarded.wake();
+			landed.sleep();
+			bg.ChildRideToMolokai();
+			if(turn==Turn.DONE) break;
+			bg.ChildRowToOahu();
+			childrenOahu++;
+			childThreadsOahu++;
+			nextOnOahu();
+			continue;
+		}
+		
+		//Pilot.
+		if(childrenOahu>=2){
+			turn=Turn.CHILD_PASSENGER;
+			childReady.wake();
+			while(!passengerAboard){
+				boarded.sleep();
+			}
+			passengerAboard=false;
+			bg.ChildRowToMolokai();
+			childrenOahu-=2;
+			childThreadsOahu-=2;
+			landed.wake();
+		}else{
+			bg.ChildRowToMolokai();
+			childrenOahu--;
+			childThreadsOahu--;
+		}
+		refillOahu();
+		if(checkDone() || ferryWaiting) break;
+		
+		//Stay on Molokai to bring the boat back after an adult.
+		ferryWaiting=true;
+		while(turn!=Turn.FERRY && turn!=Turn.DONE){
+			ferryCalled.sleep();
+		}
+		if(turn==Turn.DONE) break;
+		ferryWaiting=false;
+		bg.ChildRowToOahu();
+		childrenOahu++;
+		childThreadsOahu++;
+		nextOnOahu();
+	}
+	leave();
+    }
+
     static void SampleItinerary()
     {
 	// Please note that this isn't a valid solution (you can't fit
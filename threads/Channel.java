@@ -0,0 +1,238 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <i>channel</i> is a bounded, buffered <tt>Communicator</tt>. Speakers
+ * append 32-bit words to a ring buffer and listeners remove them in FIFO
+ * order; each word is received by exactly one listener.
+ *
+ * <p>
+ * A channel with a capacity of zero behaves like a <tt>Communicator</tt>: a
+ * speaker does not return until a listener has received its word. With a
+ * positive capacity, a speaker only waits while the buffer is full and a
+ * listener only waits while it is empty.
+ *
+ * <p>
+ * <tt>speakAll()</tt> and <tt>listenAll()</tt> transfer a whole array under
+ * one lock acquisition, waking at most one thread on the other side per chunk
+ * copied rather than per word. A thread that finds more data (or space) left
+ * over after it is done passes the wakeup on. Words of a batch that does not
+ * fit in the buffer may interleave with those of other speakers.
+ */
+public class Channel {
+    /**
+     * Allocate a new rendezvous channel, with a capacity of zero.
+     */
+    public Channel() {
+	this(0);
+    }
+
+    /**
+     * Allocate a new channel.
+     *
+     * @param	capacity	the number of words the channel can buffer,
+     *				or zero for a rendezvous channel.
+     */
+    public Channel(int capacity) {
+	Lib.assertTrue(capacity >= 0);
+
+	rendezvous = (capacity == 0);
+	buffer = new int[Math.max(capacity, 1)];
+    }
+
+    /**
+     * Transfer <i>word</i> through this channel. Waits while the buffer is
+     * full; on a rendezvous channel, also waits until a listener has received
+     * <i>word</i>.
+     *
+     * @param	word	the integer to transfer.
+     */
+    public void speak(int word) {
+	lock.acquire();
+
+	while (count == buffer.length)
+	    spaceReady.sleep();
+	put(word);
+	dataReady.wake();
+	if (count < buffer.length)
+	    wakeSpeakers();
+	waitTaken();
+
+	lock.release();
+    }
+
+    /**
+     * Wait for a word to be available in this channel, and return it.
+     *
+     * @return	the integer transferred.
+     */
+    public int listen() {
+	lock.acquire();
+
+	while (count == 0)
+	    dataReady.sleep();
+	int word = take();
+	wakeSpeakers();
+	if (count > 0)
+	    dataReady.wake();
+
+	lock.release();
+	return word;
+    }
+
+    /**
+     * Transfer all of <i>words</i>, in order, through this channel. Waits
+     * whenever the buffer is full; on a rendezvous channel, also waits until
+     * the last word has been received.
+     *
+     * @param	words	the integers to transfer.
+     */
+    public void speakAll(int[] words) {
+	lock.acquire();
+
+	for (int i=0; i<words.length; ) {
+	    while (count == buffer.length)
+		spaceReady.sleep();
+
+	    int n = Math.min(words.length-i, buffer.length-count);
+	    int tail = (head + count) % buffer.length;
+	    int first = Math.min(n, buffer.length-tail);
+	    System.arraycopy(words, i, buffer, tail, first);
+	    System.arraycopy(words, i+first, buffer, 0, n-first);
+	    count += n;
+	    putCount += n;
+	    i += n;
+
+	    dataReady.wake();
+	}
+	// more room is left for the next speaker
+	if (count < buffer.length)
+	    wakeSpeakers();
+	waitTaken();
+
+	lock.release();
+    }
+
+    /**
+     * Fill <i>words</i> with words received through this channel, waiting
+     * whenever the buffer is empty.
+     *
+     * @param	words	the array to fill.
+     */
+    public void listenAll(int[] words) {
+	lock.acquire();
+
+	for (int i=0; i<words.length; ) {
+	    while (count == 0)
+		dataReady.sleep();
+
+	    int n = Math.min(words.length-i, count);
+	    int first = Math.min(n, buffer.length-head);
+	    System.arraycopy(buffer, head, words, i, first);
+	    System.arraycopy(buffer, 0, words, i+first, n-first);
+	    head = (head + n) % buffer.length;
+	    count -= n;
+	    takeCount += n;
+	    i += n;
+
+	    wakeSpeakers();
+	}
+	// more data is left for the next listener
+	if (count > 0)
+	    dataReady.wake();
+
+	lock.release();
+    }
+
+    /**
+     * Return the number of words this channel can buffer.
+     *
+     * @return	the capacity of this channel.
+     */
+    public int getCapacity() {
+	return rendezvous ? 0 : buffer.length;
+    }
+
+    private void put(int word) {
+	buffer[(head + count) % buffer.length] = word;
+	count++;
+	putCount++;
+    }
+
+    private int take() {
+	int word = buffer[head];
+	head = (head + 1) % buffer.length;
+	count--;
+	takeCount++;
+	return word;
+    }
+
+    private void wakeSpeakers() {
+	// speakers on a rendezvous channel also wait for their words to be
+	// taken, so they must all recheck
+	if (rendezvous)
+	    spaceReady.wakeAll();
+	else
+	    spaceReady.wake();
+    }
+
+    private void waitTaken() {
+	if (!rendezvous)
+	    return;
+
+	long mine = putCount;
+	while (takeCount < mine)
+	    spaceReady.sleep();
+	// the buffer may have room for another waiting speaker
+	if (count < buffer.length)
+	    wakeSpeakers();
+    }
+
+    private static class PingTest implements Runnable {
+	PingTest(Channel ping, Channel pong) {
+	    this.ping = ping;
+	    this.pong = pong;
+	}
+
+	public void run() {
+	    int[] words = new int[10];
+	    for (int i=0; i<10; i++) {
+		ping.listenAll(words);
+		pong.speakAll(words);
+	    }
+	}
+
+	private Channel ping;
+	private Channel pong;
+    }
+
+    /**
+     * Test that this module is working.
+     */
+    public static void selfTest() {
+	Channel ping = new Channel(4);
+	Channel pong = new Channel();
+
+	new KThread(new PingTest(ping, pong)).setName("ping").fork();
+
+	int[] words = new int[10], echo = new int[10];
+	for (int i=0; i<10; i++) {
+	    for (int j=0; j<10; j++)
+		words[j] = i*10 + j;
+	    ping.speakAll(words);
+	    pong.listenAll(echo);
+	    Lib.assertTrue(java.util.Arrays.equals(words, echo));
+	}
+    }
+
+    private boolean rendezvous;
+    private int[] buffer;
+    private int head = 0, count = 0;
+    /** The number of words ever put into and taken from the buffer. */
+    private long putCount = 0, takeCount = 0;
+
+    private Lock lock = new Lock();
+    private Condition2 spaceReady = new Condition2(lock);
+    private Condition2 dataReady = new Condition2(lock);
+}
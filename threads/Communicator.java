@@ -11,8 +11,8 @@ import nachos.machine.*;
  */
 public class Communicator {
 	Lock lock;
-	Condition listenReady;
-	Condition speakReady;
+	Condition2 listenReady;
+	Condition2 speakReady;
 	int waitingSpeakers=0;
 	int waitingListeners=0;
 	int activeListeners=0;
@@ -23,8 +23,8 @@ public class Communicator {
      */
     public Communicator() {
 		lock=new Lock();
-		listenReady=new Condition(lock);
-		speakReady=new Condition(lock);
+		listenReady=new Condition2(lock);
+		speakReady=new Condition2(lock);
     }
 
     /**
@@ -45,7 +45,6 @@ public class Communicator {
 			waitingSpeakers--;
 		}
 		isWriting=true;
-		System.out.println("Writing "+word+" to buffer.");
 		buffer=word;
 		if(waitingListeners>0){
 			listenReady.wake();
@@ -70,18 +69,15 @@ public class Communicator {
 		}
 		//activeListeners++;
 		result=buffer;
-		System.out.println("Reading "+result+" from buffer.");
 		//activeListeners--;
 		//if(activeListeners==0){ //The "last" leaving listener clean up the mess.
 			isWriting=false;
-			System.out.println("Cleanup");
 			if(waitingSpeakers>0){
 				speakReady.wake();
 				
 			}
 		//}
 		lock.release();
-		System.out.println("Read Done.");
 		return result;
     }
 }
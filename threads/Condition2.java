@@ -21,8 +21,42 @@ public class Condition2 {
      *				<tt>wake()</tt>, or <tt>wakeAll()</tt>.
      */
     public Condition2(Lock conditionLock) {
+	this(conditionLock, false);
+    }
+
+    /**
+     * Allocate a new condition variable that may transfer priority. If
+     * <i>transferPriority</i> is <tt>true</tt>, sleeping threads donate
+     * priority to the thread expected to wake them: the one named with
+     * <tt>setSignaller()</tt>, or else the thread that last called
+     * <tt>wake()</tt> or <tt>wakeAll()</tt>.
+     *
+     * @param	conditionLock	the lock associated with this condition
+     *				variable.
+     * @param	transferPriority	<tt>true</tt> if sleeping threads should
+     *					donate priority to the signaller.
+     */
+    public Condition2(Lock conditionLock, boolean transferPriority) {
 	this.conditionLock = conditionLock;
-	threadCount=0;
+	this.transferPriority = transferPriority;
+	waitQueue = ThreadedKernel.scheduler.newThreadQueue(transferPriority);
+    }
+
+    /**
+     * Name the thread expected to wake the threads sleeping on this condition
+     * variable, so that they donate priority to it. Has no effect unless the
+     * condition variable transfers priority.
+     *
+     * @param	thread	the thread expected to call <tt>wake()</tt> or
+     *			<tt>wakeAll()</tt>.
+     */
+    public void setSignaller(KThread thread) {
+	if (!transferPriority)
+	    return;
+
+	boolean intStatus = Machine.interrupt().disable();
+	waitQueue.setHolder(thread);
+	Machine.interrupt().restore(intStatus);
     }
 
     /**
@@ -30,19 +64,48 @@ public class Condition2 {
      * variable until another thread wakes it using <tt>wake()</tt>. The
      * current thread must hold the associated lock. The thread will
      * automatically reacquire the lock before <tt>sleep()</tt> returns.
+     *
+     * <p>
+     * A woken thread is moved straight onto the lock's wait queue (<i>wait
+     * morphing</i>), and only runs once the lock has been handed to it.
      */
     public void sleep() {
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-	conditionLock.release();
 	//ExperimentNachos Begin: Condition Variable
 	boolean intStatus = Machine.interrupt().disable();
-	threadCount++;
+	long waitStart = Machine.timer().getTime();
+	conditionLock.release();
 	waitQueue.waitForAccess(KThread.currentThread());
 	KThread.sleep();
+	profile(waitStart);
 	Machine.interrupt().restore(intStatus);
 	//ExperimentNachos End.
-	conditionLock.acquire();
+	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+    }
+
+    /**
+     * Like <tt>sleep()</tt>, but give up waiting after <i>ticks</i> clock
+     * ticks. The lock is reacquired either way before this method returns.
+     *
+     * @param	ticks	the maximum number of clock ticks to wait.
+     * @return	<tt>true</tt> if the thread was woken by <tt>wake()</tt> or
+     *		<tt>wakeAll()</tt>, or <tt>false</tt> if the wait timed out.
+     */
+    public boolean sleepFor(long ticks) {
+	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	long waitStart = Machine.timer().getTime();
+	conditionLock.release();
+	boolean woken = ThreadedKernel.alarm.waitOn(waitQueue, ticks);
+	profile(waitStart);
+	Machine.interrupt().restore(intStatus);
+
+	// a woken thread already holds the lock; one that timed out does not
+	if (!woken)
+	    conditionLock.acquire();
+	return woken;
     }
 
     /**
@@ -54,10 +117,10 @@ public class Condition2 {
 	//ExperimentNachos Begin: Condition Variable
 	boolean intStatus = Machine.interrupt().disable();
 	KThread thread = waitQueue.nextThread();
-	if (thread != null) {
-		threadCount--;
-	    thread.ready();
-	}
+	if (thread != null)
+	    conditionLock.waitForAccess(thread);
+	if (transferPriority)
+	    waitQueue.setHolder(KThread.currentThread());
 	Machine.interrupt().restore(intStatus);
 	//ExperimentNachos End.
     }
@@ -69,11 +132,108 @@ public class Condition2 {
     public void wakeAll() {
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 	//ExperimentNachos Begin: Condition Variable
-	while(threadCount>0) wake();
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread;
+	while ((thread = waitQueue.nextThread()) != null)
+	    conditionLock.waitForAccess(thread);
+	if (transferPriority)
+	    waitQueue.setHolder(KThread.currentThread());
+	Machine.interrupt().restore(intStatus);
 	//ExperimentNachos End.
     }
 
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+	final Lock lock = new Lock();
+	final Condition2 cond = new Condition2(lock, true);
+	final Semaphore hold = new Semaphore(0);
+	final boolean[] signalled = { false };
+	final int[] started = { 0 };
+	boolean donation = (ThreadedKernel.scheduler instanceof PriorityScheduler);
+
+	// a sleeping thread donates to the signaller it was told about
+	KThread low = new KThread(new Runnable() {
+		public void run() {
+		    hold.P();
+		    lock.acquire();
+		    signalled[0] = true;
+		    cond.wake();
+		    lock.release();
+		}
+	    }).setName("signaller");
+	KThread high = new KThread(new Runnable() {
+		public void run() {
+		    lock.acquire();
+		    started[0]++;
+		    while (!signalled[0])
+			cond.sleep();
+		    lock.release();
+		}
+	    }).setName("sleeper");
+
+	boolean intStatus = Machine.interrupt().disable();
+	if (donation)
+	    ThreadedKernel.scheduler.setPriority(high, 6);
+	Machine.interrupt().restore(intStatus);
+
+	low.fork();
+	cond.setSignaller(low);
+	high.fork();
+	while (started[0] < 1)
+	    KThread.yield();
+	for (int i=0; i<10; i++)
+	    KThread.yield();
+
+	if (donation) {
+	    intStatus = Machine.interrupt().disable();
+	    Lib.assertTrue(ThreadedKernel.scheduler.getEffectivePriority(low)
+			   >= 6);
+	    Machine.interrupt().restore(intStatus);
+	}
+
+	hold.V();
+	low.join();
+	high.join();
+	Lib.assertTrue(signalled[0]);
+
+	// a timed sleep nobody wakes times out, holding the lock again
+	lock.acquire();
+	long start = Machine.timer().getTime();
+	Lib.assertTrue(!cond.sleepFor(1000));
+	long waited = Machine.timer().getTime() - start;
+	Lib.assertTrue(waited >= 1000 && waited < 1000 + 2*Stats.TimerTicks);
+	Lib.assertTrue(lock.isHeldByCurrentThread());
+
+	// a timed sleep woken well before its deadline
+	new KThread(new Runnable() {
+		public void run() {
+		    ThreadedKernel.alarm.waitUntil(500);
+		    lock.acquire();
+		    cond.wake();
+		    lock.release();
+		}
+	    }).setName("waker").fork();
+	start = Machine.timer().getTime();
+	Lib.assertTrue(cond.sleepFor(100000));
+	Lib.assertTrue(Machine.timer().getTime() - start < 100000);
+	Lib.assertTrue(lock.isHeldByCurrentThread());
+	lock.release();
+    }
+
+    /**
+     * Record a sleep that started at <i>waitStart</i> in the profiler.
+     */
+    private void profile(long waitStart) {
+	if (profile != null) {
+	    profile.acquired();
+	    profile.waited(Machine.timer().getTime() - waitStart);
+	}
+    }
+
     private Lock conditionLock;
-	private int threadCount=0;
-	private ThreadQueue waitQueue =	ThreadedKernel.scheduler.newThreadQueue(false); //ExperimentNachos
+    private LockProfiler.Site profile = LockProfiler.site("Condition2");
+    private boolean transferPriority;
+	private ThreadQueue waitQueue; //ExperimentNachos
 }
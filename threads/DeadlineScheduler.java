@@ -0,0 +1,236 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.TreeSet;
+
+/**
+ * A scheduler that chooses threads by earliest deadline first.
+ *
+ * <p>
+ * Periodic threads declare their period, deadline and cost with
+ * <tt>KThread.setPeriodic()</tt>, which also performs admission control, and
+ * complete each job with <tt>KThread.waitForNextPeriod()</tt>, which uses the
+ * alarm to sleep until the next release. The next thread to be dequeued is
+ * always the thread whose current job has the earliest absolute deadline.
+ * Threads that are not periodic have no deadline; they run in FIFO order
+ * whenever no periodic job is waiting.
+ *
+ * <p>
+ * Deadlines are inherited through locks and joins: a thread holding a lock
+ * runs with the earliest deadline of all the threads waiting for it, so a
+ * background thread cannot make a real-time job miss its deadline by holding
+ * a lock the job needs.
+ */
+public class DeadlineScheduler extends Scheduler {
+    /**
+     * Allocate a new deadline scheduler.
+     */
+    public DeadlineScheduler() {
+    }
+
+    /**
+     * Allocate a new deadline thread queue.
+     *
+     * @param	transferPriority	<tt>true</tt> if this queue should
+     *					transfer deadlines from waiting threads
+     *					to the owning thread.
+     * @return	a new deadline thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new DeadlineQueue(transferPriority);
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that sorts threads by effective deadline.
+     */
+    protected class DeadlineQueue extends ThreadQueue {
+	DeadlineQueue(boolean transferPriority) {
+	    this.transferPriority = transferPriority;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    getThreadState(thread).waitForAccess(this);
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    getThreadState(thread).acquire(this);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState next = waitQueue.pollFirst();
+	    if (next == null)
+		return null;
+
+	    next.acquire(this);
+	    return next.thread;
+	}
+
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    if (state.waiting != this || !waitQueue.remove(state))
+		return false;
+
+	    state.waiting = null;
+	    if (holder != null && transferPriority)
+		holder.updateDeadline(new HashSet<Integer>());
+	    return true;
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (Iterator<ThreadState> i=waitQueue.iterator(); i.hasNext(); ) {
+		ThreadState state = i.next();
+		System.out.print(state.thread + ":" + state.effectiveDeadline + " ");
+	    }
+	}
+
+	/**
+	 * <tt>true</tt> if this queue should transfer deadlines from waiting
+	 * threads to the owning thread.
+	 */
+	public boolean transferPriority;
+	/** The thread that currently has access, if any. */
+	public ThreadState holder = null;
+
+	private TreeSet<ThreadState> waitQueue = new TreeSet<ThreadState>(
+	    new Comparator<ThreadState>() {
+		public int compare(ThreadState s1, ThreadState s2) {
+		    if (s1.effectiveDeadline != s2.effectiveDeadline)
+			return s1.effectiveDeadline < s2.effectiveDeadline ? -1 : 1;
+		    if (s1.startTime != s2.startTime)
+			return s1.startTime < s2.startTime ? -1 : 1;
+		    return s1.index - s2.index;
+		}
+	    });
+    }
+
+    /**
+     * The scheduling state of a thread: its effective deadline, the queues it
+     * holds, and the queue it's waiting for, if any.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class ThreadState {
+	/**
+	 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+	 * specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public ThreadState(KThread thread) {
+	    this.thread = thread;
+	    this.index = numStates++;
+	    this.effectiveDeadline = thread.getDeadline();
+	}
+
+	/**
+	 * Called when the associated thread starts waiting on the specified
+	 * queue. The thread's own deadline may have moved on since it last
+	 * waited, so the effective deadline is recomputed first.
+	 *
+	 * @param	waitQueue	the queue that the associated thread is
+	 *				now waiting on.
+	 */
+	public void waitForAccess(DeadlineQueue waitQueue) {
+	    updateDeadline(new HashSet<Integer>());
+
+	    this.waiting = waitQueue;
+	    this.startTime = Machine.timer().getTime();
+	    waitQueue.waitQueue.add(this);
+	    if (waitQueue.holder != null && waitQueue.transferPriority)
+		waitQueue.holder.updateDeadline(new HashSet<Integer>());
+	}
+
+	/**
+	 * Called when the associated thread has acquired access to whatever is
+	 * guarded by <tt>waitQueue</tt>.
+	 *
+	 * @param	waitQueue	the queue the thread now holds.
+	 */
+	public void acquire(DeadlineQueue waitQueue) {
+	    if (this.waiting == waitQueue)
+		this.waiting = null;
+	    if (waitQueue.holder != null) {
+		ThreadState holder = waitQueue.holder;
+		waitQueue.holder = null;
+		holder.holding.remove(waitQueue);
+		holder.updateDeadline(new HashSet<Integer>());
+	    }
+	    waitQueue.holder = this;
+	    holding.add(waitQueue);
+	    updateDeadline(new HashSet<Integer>());
+	}
+
+	/**
+	 * Recompute the effective deadline of the associated thread: the
+	 * earliest of its own deadline and the effective deadlines of the
+	 * threads waiting for it. Propagates any change to the holder of the
+	 * queue this thread waits on.
+	 *
+	 * @param	mask	the threads already visited, to stop at cycles.
+	 */
+	public void updateDeadline(HashSet<Integer> mask) {
+	    if (mask.contains(index))
+		return;
+
+	    long deadline = thread.getDeadline();
+	    for (DeadlineQueue queue : holding) {
+		if (!queue.transferPriority || queue.waitQueue.isEmpty())
+		    continue;
+		deadline = Math.min(deadline,
+				    queue.waitQueue.first().effectiveDeadline);
+	    }
+
+	    if (deadline == effectiveDeadline)
+		return;
+
+	    if (waiting != null)
+		waiting.waitQueue.remove(this);
+	    effectiveDeadline = deadline;
+	    if (waiting != null) {
+		waiting.waitQueue.add(this);
+		if (waiting.holder != null && waiting.transferPriority) {
+		    mask.add(index);
+		    waiting.holder.updateDeadline(mask);
+		}
+	    }
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The effective deadline of the associated thread. */
+	protected long effectiveDeadline;
+	protected long startTime;
+
+	private int index;
+	private ArrayList<DeadlineQueue> holding = new ArrayList<DeadlineQueue>();
+	private DeadlineQueue waiting = null;
+    }
+
+    private int numStates = 0;
+}
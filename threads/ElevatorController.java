@@ -2,9 +2,29 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.TreeSet;
+
 /**
  * A controller for all the elevators in an elevator bank. The controller
  * accesses the elevator bank through an instance of <tt>ElevatorControls</tt>.
+ *
+ * <p>
+ * Each elevator runs the LOOK algorithm: it keeps moving in one direction
+ * while it has floor buttons or hall calls ahead of it, then turns around.
+ * A hall call is assigned to the elevator with the earliest estimated time
+ * of arrival, and a stop serves every rider on that floor going the
+ * elevator's way, whichever elevator the call was assigned to. The
+ * controller sleeps until an elevator interrupt or a door timer, and then
+ * handles every event that has been queued before deciding what each
+ * elevator does next.
+ *
+ * <p>
+ * The floors each elevator has to visit are kept in sorted sets, one for its
+ * floor buttons and one for each direction of hall calls assigned to it, so
+ * that finding its next stop or the end of its run takes O(log n) time in the
+ * number of floors.
  */
 public class ElevatorController implements ElevatorControllerInterface {
     /**
@@ -12,7 +32,7 @@ public class ElevatorController implements ElevatorControllerInterface {
      */
     public ElevatorController() {
     }
-    
+
     /**
      * Initialize this elevator controller. The controller will access the
      * elevator bank through <i>controls</i>. This constructor should return
@@ -26,6 +46,41 @@ public class ElevatorController implements ElevatorControllerInterface {
      *				the elevator bank in <i>any</i> other way.
      */
     public void initialize(ElevatorControls controls) {
+	this.controls = controls;
+
+	numFloors = controls.getNumFloors();
+	numElevators = controls.getNumElevators();
+
+	direction = new int[numElevators];
+	servedDirection = new int[numElevators];
+	destination = new int[numElevators];
+	moving = new boolean[numElevators];
+	doorsOpen = new boolean[numElevators];
+	justClosed = new boolean[numElevators];
+	changed = new boolean[numElevators];
+	targets = new int[numElevators];
+	closeTime = new long[numElevators];
+	floorButtons = new boolean[numElevators][numFloors];
+
+	buttonFloors = new ArrayList<TreeSet<Integer>>(numElevators);
+	upCallFloors = new ArrayList<TreeSet<Integer>>(numElevators);
+	downCallFloors = new ArrayList<TreeSet<Integer>>(numElevators);
+	for (int elevator=0; elevator<numElevators; elevator++) {
+	    buttonFloors.add(new TreeSet<Integer>());
+	    upCallFloors.add(new TreeSet<Integer>());
+	    downCallFloors.add(new TreeSet<Integer>());
+	}
+
+	upCalls = new int[numFloors];
+	downCalls = new int[numFloors];
+	for (int floor=0; floor<numFloors; floor++)
+	    upCalls[floor] = downCalls[floor] = -1;
+
+	eventWait = new Semaphore(0);
+	wakeUp = new Runnable() {
+		public void run() { eventWait.V(); }
+	    };
+	controls.setInterruptHandler(wakeUp);
     }
 
     /**
@@ -34,5 +89,319 @@ public class ElevatorController implements ElevatorControllerInterface {
      * call <tt>controls.finish()</tt> when the controller is finished.
      */
     public void run() {
+	while (true) {
+	    eventWait.P();
+
+	    ElevatorEvent e;
+	    while ((e = controls.getNextEvent()) != null) {
+		switch (e.event) {
+		case ElevatorEvent.eventUpButtonPressed:
+		    if (upCalls[e.floor] == -1)
+			upCalls[e.floor] = assign(e.floor, dirUp);
+		    break;
+		case ElevatorEvent.eventDownButtonPressed:
+		    if (downCalls[e.floor] == -1)
+			downCalls[e.floor] = assign(e.floor, dirDown);
+		    break;
+		case ElevatorEvent.eventFloorButtonPressed:
+		    if (!floorButtons[e.elevator][e.floor]) {
+			floorButtons[e.elevator][e.floor] = true;
+			buttonFloors.get(e.elevator).add(e.floor);
+			targets[e.elevator]++;
+			changed[e.elevator] = true;
+		    }
+		    break;
+		case ElevatorEvent.eventElevatorArrived:
+		    moving[e.elevator] = false;
+		    changed[e.elevator] = true;
+		    break;
+		case ElevatorEvent.eventRidersDone:
+		    controls.finish();
+		    Lib.assertNotReached();
+		}
+	    }
+
+	    // only elevators with new targets or arrivals need a new plan
+	    long time = Machine.timer().getTime();
+	    for (int elevator=0; elevator<numElevators; elevator++) {
+		if (moving[elevator]) {
+		    if (changed[elevator])
+			retarget(elevator);
+		}
+		else if (doorsOpen[elevator]) {
+		    if (time >= closeTime[elevator]) {
+			controls.closeDoors(elevator);
+			doorsOpen[elevator] = false;
+			justClosed[elevator] = true;
+			dispatch(elevator);
+		    }
+		}
+		else if (changed[elevator]) {
+		    dispatch(elevator);
+		}
+		changed[elevator] = false;
+	    }
+	}
+    }
+
+    /**
+     * Decide what a stopped elevator with closed doors does next: open its
+     * doors here, move to its next target, or wait. An elevator keeps its
+     * direction while it has work that way, and otherwise turns around.
+     */
+    private void dispatch(int elevator) {
+	int floor = controls.getFloor(elevator);
+
+	int dir = direction[elevator];
+	if (dir == dirNeither) {
+	    dir = nearestDirection(elevator, floor);
+	}
+	else if (!hasWork(elevator, floor, dir)) {
+	    dir = hasWork(elevator, floor, -dir) ? -dir : dirNeither;
+	}
+
+	if (dir == dirNeither) {
+	    direction[elevator] = dirNeither;
+	    if (floorButtons[elevator][floor])
+		open(elevator, floor, dirNeither);
+	    return;
+	}
+
+	direction[elevator] = dir;
+	if (floorButtons[elevator][floor] ||
+	    (calls(dir)[floor] == elevator && !blocked(elevator, floor, dir))) {
+	    open(elevator, floor, dir);
+	    return;
+	}
+
+	int target = nextTarget(elevator, floor+dir, dir);
+	controls.setDirectionDisplay(elevator, dir);
+	Lib.assertTrue(controls.moveTo(target, elevator));
+	destination[elevator] = target;
+	moving[elevator] = true;
+	justClosed[elevator] = false;
+    }
+
+    /**
+     * Test whether an elevator stopped on <i>floor</i> has anything to do in
+     * direction <i>dir</i>, including picking up riders here.
+     */
+    private boolean hasWork(int elevator, int floor, int dir) {
+	return nextTarget(elevator, floor+dir, dir) >= 0 ||
+	    (calls(dir)[floor] == elevator && !blocked(elevator, floor, dir));
+    }
+
+    /**
+     * Return the direction an idle elevator should take up: that of a call
+     * on its own floor, or otherwise towards its nearest target.
+     */
+    private int nearestDirection(int elevator, int floor) {
+	if (hasWork(elevator, floor, dirUp) && upCalls[floor] == elevator)
+	    return dirUp;
+	if (hasWork(elevator, floor, dirDown) && downCalls[floor] == elevator)
+	    return dirDown;
+
+	int up = nextTarget(elevator, floor+1, dirUp);
+	int down = nextTarget(elevator, floor-1, dirDown);
+	if (up >= 0 && (down < 0 || up-floor <= floor-down))
+	    return dirUp;
+	if (down >= 0)
+	    return dirDown;
+	return dirNeither;
     }
+
+    /**
+     * Test whether a call on <i>floor</i> in direction <i>dir</i> was pressed
+     * by riders who could not fit when the elevator last closed its doors
+     * here. If it has somewhere else to go, the elevator leaves first rather
+     * than reopening its doors for nothing.
+     */
+    private boolean blocked(int elevator, int floor, int dir) {
+	return justClosed[elevator] && servedDirection[elevator] == dir &&
+	    (nextTarget(elevator, floor+1, dirUp) >= 0 ||
+	     nextTarget(elevator, floor-1, dirDown) >= 0);
+    }
+
+    /**
+     * Open an elevator's doors, serving its floor button and every hall call
+     * on this floor in direction <i>dir</i>.
+     */
+    private void open(int elevator, int floor, int dir) {
+	if (floorButtons[elevator][floor]) {
+	    floorButtons[elevator][floor] = false;
+	    buttonFloors.get(elevator).remove(floor);
+	    targets[elevator]--;
+	}
+	if (dir != dirNeither && calls(dir)[floor] != -1) {
+	    int assigned = calls(dir)[floor];
+	    callFloors(assigned, dir).remove(floor);
+	    targets[assigned]--;
+	    calls(dir)[floor] = -1;
+	}
+
+	servedDirection[elevator] = dir;
+	controls.setDirectionDisplay(elevator, dir);
+	controls.openDoors(elevator);
+	doorsOpen[elevator] = true;
+	justClosed[elevator] = false;
+
+	closeTime[elevator] = Machine.timer().getTime() + dwellTicks;
+	ThreadedKernel.alarm.schedule(dwellTicks, wakeUp);
+    }
+
+    /**
+     * Stop a moving elevator early if a nearer target has appeared on its
+     * way.
+     */
+    private void retarget(int elevator) {
+	int dir = direction[elevator];
+	int floor = controls.getFloor(elevator);
+	int target = nextTarget(elevator, floor+dir, dir);
+	if (target >= 0 && (destination[elevator]-target)*dir > 0 &&
+	    controls.moveTo(target, elevator))
+	    destination[elevator] = target;
+    }
+
+    /**
+     * Return the first floor from <i>floor</i> onwards in direction
+     * <i>dir</i> where the elevator has a floor button or a hall call the
+     * same way. Failing that, return the farthest hall call the opposite
+     * way, where the elevator will turn around, or -1 if there is none.
+     */
+    private int nextTarget(int elevator, int floor, int dir) {
+	Integer button = nearest(buttonFloors.get(elevator), floor, dir);
+	Integer call = nearest(callFloors(elevator, dir), floor, dir);
+	if (button != null && (call == null || (call-button)*dir > 0))
+	    return button;
+	if (call != null)
+	    return call;
+
+	Integer turn = farthest(callFloors(elevator, -dir), floor, dir);
+	return (turn != null) ? turn : -1;
+    }
+
+    /**
+     * Pick the elevator that can reach a new hall call soonest. An elevator
+     * that is moving away from the call, or would pass it going the other
+     * way, first has to finish its run.
+     */
+    private int assign(int floor, int dir) {
+	int best = -1;
+	long bestTime = 0;
+	for (int elevator=0; elevator<numElevators; elevator++) {
+	    long time = arrivalTime(elevator, floor, dir);
+	    // an elevator that has just left here could not take everyone
+	    if (justClosed[elevator] && servedDirection[elevator] == dir &&
+		controls.getFloor(elevator) == floor)
+		time += (long) 2*numFloors*Stats.ElevatorTicks;
+	    if (best == -1 || time < bestTime) {
+		best = elevator;
+		bestTime = time;
+	    }
+	}
+	targets[best]++;
+	changed[best] = true;
+	callFloors(best, dir).add(floor);
+	return best;
+    }
+
+    private long arrivalTime(int elevator, int floor, int dir) {
+	int at = controls.getFloor(elevator);
+	int heading = direction[elevator];
+
+	long distance;
+	if (heading == dirNeither ||
+	    (heading == dir && (floor-at)*heading >= (moving[elevator]?1:0))) {
+	    distance = Math.abs(floor-at);
+	}
+	else {
+	    // the elevator first runs to its last target that way
+	    int end = at;
+	    Integer[] last = { farthest(buttonFloors.get(elevator), at, heading),
+			       farthest(upCallFloors.get(elevator), at, heading),
+			       farthest(downCallFloors.get(elevator), at, heading) };
+	    for (int i=0; i<last.length; i++) {
+		if (last[i] != null && (last[i]-end)*heading > 0)
+		    end = last[i];
+	    }
+	    distance = Math.abs(end-at) + Math.abs(end-floor);
+	}
+
+	return distance*Stats.ElevatorTicks + targets[elevator]*dwellTicks;
+    }
+
+    private int[] calls(int dir) {
+	return (dir == dirUp) ? upCalls : downCalls;
+    }
+
+    private TreeSet<Integer> callFloors(int elevator, int dir) {
+	return ((dir == dirUp) ? upCallFloors : downCallFloors).get(elevator);
+    }
+
+    /**
+     * Return the first floor in <i>floors</i> from <i>floor</i> onwards in
+     * direction <i>dir</i>, or <tt>null</tt> if there is none.
+     */
+    private static Integer nearest(TreeSet<Integer> floors, int floor,
+				   int dir) {
+	return (dir == dirUp) ? floors.ceiling(floor) : floors.floor(floor);
+    }
+
+    /**
+     * Return the last floor in <i>floors</i> from <i>floor</i> onwards in
+     * direction <i>dir</i>, or <tt>null</tt> if there is none.
+     */
+    private static Integer farthest(TreeSet<Integer> floors, int floor,
+				    int dir) {
+	if (floors.isEmpty())
+	    return null;
+
+	int last = (dir == dirUp) ? floors.last() : floors.first();
+	return ((last-floor)*dir >= 0) ? Integer.valueOf(last) : null;
+    }
+
+    /**
+     * Run a simulation with several elevators and riders on
+     * <tt>Machine.bank()</tt>.
+     */
+    public static void selfTest() {
+	Random random = new Random(0);
+	int numFloors = 10, numRiders = 40;
+
+	Machine.bank().init(3, numFloors, new ElevatorController());
+	for (int i=0; i<numRiders; i++) {
+	    int floor = random.nextInt(numFloors);
+	    int[] stops = new int[2];
+	    for (int j=0, at=floor; j<stops.length; j++) {
+		stops[j] = (at + 1 + random.nextInt(numFloors-1)) % numFloors;
+		at = stops[j];
+	    }
+	    Machine.bank().addRider(new Rider(), floor, stops);
+	}
+	Machine.bank().run();
+    }
+
+    private static final int dirUp = ElevatorBank.dirUp;
+    private static final int dirDown = ElevatorBank.dirDown;
+    private static final int dirNeither = ElevatorBank.dirNeither;
+
+    /** How long the doors stay open at a stop. */
+    private static final int dwellTicks = Stats.TimerTicks;
+
+    private ElevatorControls controls;
+    private int numFloors, numElevators;
+    private Semaphore eventWait;
+    private Runnable wakeUp;
+
+    private int[] direction, servedDirection, destination;
+    private boolean[] moving, doorsOpen, justClosed, changed;
+    /** The number of floor buttons and hall calls of each elevator. */
+    private int[] targets;
+    private long[] closeTime;
+    private boolean[][] floorButtons;
+    /** The elevator each hall call is assigned to, or -1 for none. */
+    private int[] upCalls, downCalls;
+    /** The floors of each elevator's floor buttons and hall calls. */
+    private ArrayList<TreeSet<Integer>> buttonFloors, upCallFloors,
+	downCallFloors;
 }
@@ -0,0 +1,454 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayDeque;
+
+/**
+ * A headless elevator bank for large simulations. Like the machine's
+ * <tt>ElevatorBank</tt>, it runs an unmodified
+ * <tt>ElevatorControllerInterface</tt> in a thread of its own, but there is
+ * no GUI and the riders are not threads: they are rows in arrays, and they
+ * react to the doors opening and closing in the same call that opens or
+ * closes them. This lets a simulation have hundreds of floors, dozens of
+ * elevators and tens of thousands of riders.
+ *
+ * <p>
+ * Riders waiting on a floor are kept in per-floor, per-direction FIFO lists
+ * threaded through an array. Elevator motion is driven by a single alarm
+ * timeout for the earliest elevator due at its next floor, and all the
+ * events posted while handling a timeout or a controller request are
+ * delivered with one call to the controller's interrupt handler.
+ *
+ * <p>
+ * The time each rider waits and rides is recorded in
+ * <tt>SchedulingStats</tt>.
+ */
+public class ElevatorSimulation implements ElevatorControls {
+    /**
+     * Allocate a new simulation with the specified number of elevators and
+     * floors, run by the specified controller.
+     *
+     * @param	numElevators	the number of elevators.
+     * @param	numFloors	the number of floors.
+     * @param	controller	the elevator controller.
+     */
+    public ElevatorSimulation(int numElevators, int numFloors,
+			      ElevatorControllerInterface controller) {
+	Lib.assertTrue(numElevators > 0 && numFloors > 1);
+
+	this.numElevators = numElevators;
+	this.numFloors = numFloors;
+	this.controller = controller;
+
+	carFloor = new int[numElevators];
+	carDestination = new int[numElevators];
+	carDirection = new int[numElevators];
+	carMoving = new boolean[numElevators];
+	carOpen = new boolean[numElevators];
+	carArrival = new long[numElevators];
+	carButtons = new boolean[numElevators][numFloors];
+	passengers = new int[numElevators][maxRiders];
+	load = new int[numElevators];
+
+	waitingHead = new int[2][numFloors];
+	waitingTail = new int[2][numFloors];
+	for (int i=0; i<2; i++) {
+	    for (int floor=0; floor<numFloors; floor++)
+		waitingHead[i][floor] = waitingTail[i][floor] = -1;
+	}
+	hallButtons = new boolean[2][numFloors];
+
+	sweepHandler = new Runnable() {
+		public void run() { sweep(); }
+	    };
+    }
+
+    /**
+     * Add a rider to the simulation. Must not be called after
+     * <tt>run()</tt>.
+     *
+     * @param	floor	the floor the rider starts on.
+     * @param	stops	the floors the rider should get off at, in order.
+     */
+    public void addRider(int floor, int[] stops) {
+	Lib.assertTrue(!started && floor >= 0 && floor < numFloors);
+
+	if (numRiders == riderStops.length) {
+	    int capacity = 2*riderStops.length;
+	    riderStops = java.util.Arrays.copyOf(riderStops, capacity);
+	    riderStart = java.util.Arrays.copyOf(riderStart, capacity);
+	}
+	for (int i=0, at=floor; i<stops.length; i++) {
+	    Lib.assertTrue(stops[i] >= 0 && stops[i] < numFloors &&
+			   stops[i] != at);
+	    at = stops[i];
+	}
+
+	riderStops[numRiders] = stops;
+	riderStart[numRiders] = floor;
+	numRiders++;
+    }
+
+    /**
+     * Run the simulation. Return when every rider has made all its stops and
+     * the controller has finished.
+     */
+    public void run() {
+	Lib.assertTrue(!started);
+	started = true;
+
+	riderLeg = new int[numRiders];
+	legStart = new long[numRiders];
+	legBoarded = new long[numRiders];
+	nextWaiting = new int[numRiders];
+
+	controller.initialize(this);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	startTime = Machine.timer().getTime();
+	for (int rider=0; rider<numRiders; rider++) {
+	    if (riderStops[rider].length == 0)
+		finishRider(rider);
+	    else
+		startLeg(rider, riderStart[rider]);
+	}
+	if (finished == numRiders)
+	    post(ElevatorEvent.eventRidersDone, -1, -1);
+	deliver();
+
+	controllerThread = new KThread(controller);
+	controllerThread.setName("elevator controller").fork();
+
+	Machine.interrupt().restore(intStatus);
+
+	done.P();
+    }
+
+    /**
+     * Return how long the riders took, from the start of <tt>run()</tt>
+     * until the last rider got off at its last stop.
+     *
+     * @return	the simulated completion time, in ticks.
+     */
+    public long getCompletionTime() {
+	return finishTime - startTime;
+    }
+
+    public int getNumFloors() {
+	return numFloors;
+    }
+
+    public int getNumElevators() {
+	return numElevators;
+    }
+
+    public void setInterruptHandler(Runnable handler) {
+	this.handler = handler;
+    }
+
+    public void openDoors(int elevator) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Lib.assertTrue(!carOpen[elevator] && !carMoving[elevator]);
+	carOpen[elevator] = true;
+
+	int floor = carFloor[elevator];
+	for (int i=0; i<load[elevator]; ) {
+	    int rider = passengers[elevator][i];
+	    if (riderStops[rider][riderLeg[rider]] != floor) {
+		i++;
+		continue;
+	    }
+
+	    passengers[elevator][i] = passengers[elevator][--load[elevator]];
+	    endLeg(rider);
+	    if (riderLeg[rider] == riderStops[rider].length)
+		finishRider(rider);
+	    else
+		startLeg(rider, floor);
+	}
+	carButtons[elevator][floor] = false;
+	board(elevator);
+
+	deliver();
+	Machine.interrupt().restore(intStatus);
+    }
+
+    public void closeDoors(int elevator) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Lib.assertTrue(carOpen[elevator]);
+	carOpen[elevator] = false;
+
+	// riders left behind press their button again
+	int floor = carFloor[elevator];
+	press(floor, dirUp);
+	press(floor, dirDown);
+
+	deliver();
+	Machine.interrupt().restore(intStatus);
+    }
+
+    public boolean moveTo(int floor, int elevator) {
+	Lib.assertTrue(floor >= 0 && floor < numFloors);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	Lib.assertTrue(!carOpen[elevator]);
+
+	boolean moved;
+	int at = carFloor[elevator];
+	if (!carMoving[elevator]) {
+	    moved = (floor != at);
+	    if (moved) {
+		carDestination[elevator] = floor;
+		carMoving[elevator] = true;
+		carArrival[elevator] =
+		    Machine.timer().getTime() + Stats.ElevatorTicks;
+		scheduleSweep(carArrival[elevator]);
+	    }
+	}
+	else {
+	    // as in the elevator bank, it must be possible to stop there
+	    int destination = carDestination[elevator];
+	    moved = !((destination > at && floor <= at) ||
+		      (destination < at && floor >= at));
+	    if (moved)
+		carDestination[elevator] = floor;
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return moved;
+    }
+
+    public int getFloor(int elevator) {
+	return carFloor[elevator];
+    }
+
+    public void setDirectionDisplay(int elevator, int direction) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	carDirection[elevator] = direction;
+	if (carOpen[elevator])
+	    board(elevator);
+
+	deliver();
+	Machine.interrupt().restore(intStatus);
+    }
+
+    public void finish() {
+	Lib.assertTrue(KThread.currentThread() == controllerThread);
+
+	done.V();
+	KThread.finish();
+    }
+
+    public ElevatorEvent getNextEvent() {
+	boolean intStatus = Machine.interrupt().disable();
+	ElevatorEvent event = events.poll();
+	Machine.interrupt().restore(intStatus);
+	return event;
+    }
+
+    /**
+     * Move every elevator that is due at its next floor, and schedule the
+     * next sweep for the earliest one still moving. Called by the alarm.
+     */
+    private void sweep() {
+	long time = Machine.timer().getTime();
+	sweepTime = -1;
+
+	long next = -1;
+	for (int elevator=0; elevator<numElevators; elevator++) {
+	    if (!carMoving[elevator])
+		continue;
+
+	    while (carMoving[elevator] && carArrival[elevator] <= time) {
+		if (carDestination[elevator] > carFloor[elevator])
+		    carFloor[elevator]++;
+		else
+		    carFloor[elevator]--;
+
+		if (carFloor[elevator] == carDestination[elevator]) {
+		    carMoving[elevator] = false;
+		    post(ElevatorEvent.eventElevatorArrived,
+			 carFloor[elevator], elevator);
+		}
+		else {
+		    carArrival[elevator] += Stats.ElevatorTicks;
+		}
+	    }
+	    if (carMoving[elevator] && (next < 0 || carArrival[elevator] < next))
+		next = carArrival[elevator];
+	}
+	if (next >= 0)
+	    scheduleSweep(next);
+
+	deliver();
+    }
+
+    private void scheduleSweep(long time) {
+	if (sweepTime >= 0 && sweepTime <= time)
+	    return;
+	if (sweep != null)
+	    sweep.cancel();
+
+	sweepTime = time;
+	sweep = ThreadedKernel.alarm.schedule(
+	    Math.max(time - Machine.timer().getTime(), 0), sweepHandler);
+    }
+
+    /**
+     * Board riders waiting on an open elevator's floor in its direction,
+     * as long as there is room.
+     */
+    private void board(int elevator) {
+	int dir = carDirection[elevator];
+	if (dir == dirNeither)
+	    return;
+
+	int floor = carFloor[elevator];
+	int index = (dir == dirUp) ? 1 : 0;
+	// the elevator answers the call
+	hallButtons[index][floor] = false;
+
+	long time = Machine.timer().getTime();
+	while (load[elevator] < maxRiders && waitingHead[index][floor] != -1) {
+	    int rider = waitingHead[index][floor];
+	    waitingHead[index][floor] = nextWaiting[rider];
+	    if (waitingHead[index][floor] == -1)
+		waitingTail[index][floor] = -1;
+
+	    passengers[elevator][load[elevator]++] = rider;
+	    legBoarded[rider] = time;
+
+	    int stop = riderStops[rider][riderLeg[rider]];
+	    if (!carButtons[elevator][stop]) {
+		carButtons[elevator][stop] = true;
+		post(ElevatorEvent.eventFloorButtonPressed, stop, elevator);
+	    }
+	}
+    }
+
+    /**
+     * Start a rider's next leg: it waits on <i>floor</i> for an elevator
+     * going towards its next stop.
+     */
+    private void startLeg(int rider, int floor) {
+	int stop = riderStops[rider][riderLeg[rider]];
+	int dir = (stop > floor) ? dirUp : dirDown;
+	int index = (dir == dirUp) ? 1 : 0;
+
+	legStart[rider] = Machine.timer().getTime();
+	nextWaiting[rider] = -1;
+	if (waitingTail[index][floor] == -1)
+	    waitingHead[index][floor] = rider;
+	else
+	    nextWaiting[waitingTail[index][floor]] = rider;
+	waitingTail[index][floor] = rider;
+
+	for (int elevator=0; elevator<numElevators; elevator++) {
+	    if (carOpen[elevator] && carFloor[elevator] == floor &&
+		carDirection[elevator] == dir)
+		board(elevator);
+	}
+	press(floor, dir);
+    }
+
+    private void endLeg(int rider) {
+	long time = Machine.timer().getTime();
+	SchedulingStats.elevatorWait.add(legBoarded[rider] - legStart[rider]);
+	SchedulingStats.elevatorTrip.add(time - legStart[rider]);
+	riderLeg[rider]++;
+    }
+
+    private void finishRider(int rider) {
+	finishTime = Machine.timer().getTime();
+	SchedulingStats.elevatorRider(startTime, finishTime);
+
+	if (++finished == numRiders)
+	    post(ElevatorEvent.eventRidersDone, -1, -1);
+    }
+
+    /**
+     * Press the hall button on <i>floor</i> in direction <i>dir</i> if
+     * anybody is waiting for it and it is not already lit. As in the
+     * elevator bank, pressing does nothing while an elevator going that way
+     * is open on the floor.
+     */
+    private void press(int floor, int dir) {
+	int index = (dir == dirUp) ? 1 : 0;
+	if (waitingHead[index][floor] == -1 || hallButtons[index][floor])
+	    return;
+	for (int elevator=0; elevator<numElevators; elevator++) {
+	    if (carOpen[elevator] && carFloor[elevator] == floor &&
+		carDirection[elevator] == dir)
+		return;
+	}
+
+	hallButtons[index][floor] = true;
+	post(dir == dirUp ? ElevatorEvent.eventUpButtonPressed :
+	     ElevatorEvent.eventDownButtonPressed, floor, -1);
+    }
+
+    private void post(int event, int floor, int elevator) {
+	events.add(new ElevatorEvent(event, floor, elevator));
+	posted = true;
+    }
+
+    /**
+     * Call the controller's interrupt handler once for all the events
+     * posted since the last call.
+     */
+    private void deliver() {
+	if (posted && handler != null) {
+	    posted = false;
+	    handler.run();
+	}
+    }
+
+    private static final int dirUp = ElevatorBank.dirUp;
+    private static final int dirDown = ElevatorBank.dirDown;
+    private static final int dirNeither = ElevatorBank.dirNeither;
+
+    /** The number of riders that fit in an elevator, as in the bank. */
+    private static final int maxRiders = 4;
+
+    private int numElevators, numFloors;
+    private ElevatorControllerInterface controller;
+    private KThread controllerThread;
+    private Runnable handler = null;
+    private Semaphore done = new Semaphore(0);
+    private boolean started = false;
+
+    private ArrayDeque<ElevatorEvent> events = new ArrayDeque<ElevatorEvent>();
+    private boolean posted = false;
+
+    private Runnable sweepHandler;
+    private Alarm.Timeout sweep = null;
+    private long sweepTime = -1;
+
+    private int[] carFloor, carDestination, carDirection;
+    private boolean[] carMoving, carOpen;
+    private long[] carArrival;
+    private boolean[][] carButtons;
+    private int[][] passengers;
+    private int[] load;
+
+    private int numRiders = 0, finished = 0;
+    private int[][] riderStops = new int[16][];
+    private int[] riderStart = new int[16];
+    private int[] riderLeg;
+    private long[] legStart, legBoarded;
+    private long startTime, finishTime;
+
+    /**
+     * Riders waiting on each floor, for each direction (down, then up), as
+     * lists linked through <tt>nextWaiting</tt>.
+     */
+    private int[][] waitingHead, waitingTail;
+    private int[] nextWaiting;
+    private boolean[][] hallButtons;
+}
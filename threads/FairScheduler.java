@@ -0,0 +1,288 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.TreeSet;
+
+/**
+ * A scheduler that shares the processor fairly between threads according to
+ * their weights.
+ *
+ * <p>
+ * Every thread has a <i>virtual runtime</i>: the processor time it has used,
+ * divided by its weight. Each time a thread gives up the processor, it is
+ * charged the ticks that passed since it was dispatched. Waiting threads are
+ * kept in a balanced tree ordered by virtual runtime, and the thread with the
+ * smallest virtual runtime is always dequeued next, so over time each thread
+ * receives processor time in proportion to its weight. All operations take
+ * O(log n) time in the number of waiting threads.
+ *
+ * <p>
+ * The weight of a thread is its priority, as set by <tt>setPriority()</tt>. A
+ * thread that has been blocked for a while is placed no further back than
+ * slightly before the smallest virtual runtime in the queue, so it neither
+ * claims the time it missed nor waits behind threads that kept running.
+ *
+ * <p>
+ * Processor time is only accounted on the ready queue, which is allocated
+ * through <tt>newReadyQueue()</tt>. Other queues also favour the thread with
+ * the smallest virtual runtime. This scheduler does not donate priority.
+ */
+public class FairScheduler extends Scheduler {
+    /**
+     * Allocate a new fair scheduler.
+     */
+    public FairScheduler() {
+    }
+
+    /**
+     * Allocate a new fair thread queue.
+     *
+     * @param	transferPriority	ignored. This scheduler does not
+     *					donate priority.
+     * @return	a new fair thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new FairQueue(false);
+    }
+
+    /**
+     * Allocate the ready queue, the only queue on which processor time is
+     * accounted.
+     *
+     * @return	the new ready queue.
+     */
+    public ThreadQueue newReadyQueue() {
+	Lib.assertTrue(readyQueue == null);
+
+	readyQueue = new FairQueue(true);
+	return readyQueue;
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).weight;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	return getPriority(thread);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= priorityMinimum &&
+		   priority <= priorityMaximum);
+
+	getThreadState(thread).weight = priority;
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+        boolean ret = true;
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMaximum)
+	    ret = false;
+        else
+            setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return ret;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+        boolean ret = true;
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMinimum)
+            ret = false;
+        else
+            setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return ret;
+    }
+
+    /**
+     * The default weight for a new thread.
+     */
+    public static final int priorityDefault = 1;
+    /**
+     * The minimum weight that a thread can have.
+     */
+    public static final int priorityMinimum = 1;
+    /**
+     * The maximum weight that a thread can have.
+     */
+    public static final int priorityMaximum = 1 << 16;
+
+    /**
+     * Virtual runtime is kept in units of 2<sup>-16</sup> ticks, so that
+     * dividing by the largest weight loses no precision.
+     */
+    private static final int runtimeShift = 16;
+    /**
+     * How far before the smallest virtual runtime in the queue a thread that
+     * was blocked is placed when it is woken: half a timer quantum.
+     */
+    private static final long sleeperCredit =
+	((long) Stats.TimerTicks << runtimeShift) / 2;
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that keeps its threads in a red-black tree
+     * ordered by virtual runtime.
+     */
+    protected class FairQueue extends ThreadQueue {
+	FairQueue(boolean processorQueue) {
+	    this.processorQueue = processorQueue;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    if (thread == KThread.currentThread()) {
+		// charge a blocking thread now, before its virtual runtime
+		// becomes part of this queue's ordering
+		if (processorQueue || !state.charged)
+		    state.charge();
+	    }
+	    else if (state.vruntime < minVruntime - sleeperCredit)
+		state.vruntime = minVruntime - sleeperCredit;
+
+	    tree.add(state);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (processorQueue) {
+		// the current thread is giving up the processor; if it did
+		// not yield, it is blocking or finishing
+		ThreadState current = getThreadState(KThread.currentThread());
+		if (!current.charged)
+		    current.charge();
+	    }
+
+	    ThreadState next = tree.pollFirst();
+	    if (next == null)
+		return null;
+
+	    if (next.vruntime > minVruntime)
+		minVruntime = next.vruntime;
+	    if (processorQueue)
+		next.dispatch();
+	    return next.thread;
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (processorQueue)
+		getThreadState(thread).dispatch();
+	}
+
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    return tree.remove(getThreadState(thread));
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (Iterator<ThreadState> i=tree.iterator(); i.hasNext(); ) {
+		ThreadState state = i.next();
+		System.out.print(state.thread + ":" +
+				 (state.vruntime >> runtimeShift) + " ");
+	    }
+	}
+
+	private boolean processorQueue;
+	/** A lower bound on the virtual runtime of any thread in the queue. */
+	private long minVruntime = 0;
+	private TreeSet<ThreadState> tree = new TreeSet<ThreadState>(
+	    new Comparator<ThreadState>() {
+		public int compare(ThreadState s1, ThreadState s2) {
+		    if (s1.vruntime != s2.vruntime)
+			return s1.vruntime < s2.vruntime ? -1 : 1;
+		    return s1.index - s2.index;
+		}
+	    });
+    }
+
+    /**
+     * The scheduling state of a thread: its weight and virtual runtime.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class ThreadState {
+	/**
+	 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+	 * specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public ThreadState(KThread thread) {
+	    this.thread = thread;
+	    this.index = numStates++;
+	    if (readyQueue != null)
+		vruntime = readyQueue.minVruntime;
+	}
+
+	/**
+	 * Called when the associated thread is dispatched from the ready queue.
+	 */
+	void dispatch() {
+	    dispatchTime = Machine.timer().getTime();
+	    charged = false;
+	}
+
+	/**
+	 * Charge the associated thread for the ticks that passed since it was
+	 * dispatched, weighted by its priority.
+	 */
+	void charge() {
+	    long time = Machine.timer().getTime();
+	    vruntime += ((time - dispatchTime) << runtimeShift) / weight;
+	    dispatchTime = time;
+	    charged = true;
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The weight of the associated thread. */
+	protected int weight = priorityDefault;
+	/** The virtual runtime of the associated thread. */
+	protected long vruntime = 0;
+
+	private int index;
+	private long dispatchTime = 0;
+	private boolean charged = false;
+    }
+
+    private FairQueue readyQueue = null;
+    private int numStates = 0;
+}
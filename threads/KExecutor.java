@@ -0,0 +1,165 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+
+/**
+ * An executor that runs kernel tasks on a fixed pool of worker threads.
+ *
+ * <p>
+ * Submitting a task appends it to a shared task queue and returns a
+ * <tt>KFuture</tt> for its result; an idle worker removes it from the queue
+ * and runs it. Running many short tasks this way avoids creating a
+ * <tt>KThread</tt> and joining it for every one of them.
+ *
+ * <p>
+ * An exception thrown by a task is kept in its future. An error, such as a
+ * failed assertion or the <tt>ThreadDeath</tt> that stops a thread, is not
+ * caught, and ends the worker as it would any other thread.
+ */
+public class KExecutor {
+    /**
+     * Allocate a new executor and fork its worker threads.
+     *
+     * @param	workers	the number of worker threads, at least 1.
+     */
+    public KExecutor(int workers) {
+	Lib.assertTrue(workers > 0);
+
+	this.workers = new KThread[workers];
+	for (int i=0; i<workers; i++) {
+	    this.workers[i] = new KThread(new Worker());
+	    this.workers[i].setName("worker " + i).fork();
+	}
+    }
+
+    /**
+     * Queue a task to be run by one of the workers.
+     *
+     * @param	task	the task to run.
+     * @return	a future for the value the task returns.
+     */
+    public <T> KFuture<T> submit(Callable<T> task) {
+	Lib.assertTrue(task != null && !shutdown);
+
+	KFuture<T> future = new KFuture<T>();
+	tasks.add(new Job<T>(task, future));
+	return future;
+    }
+
+    /**
+     * Queue a task to be run by one of the workers.
+     *
+     * @param	task	the task to run.
+     * @return	a future that completes with <tt>null</tt> once the task has
+     *		run.
+     */
+    public KFuture<Object> submit(final Runnable task) {
+	Lib.assertTrue(task != null);
+
+	return submit(new Callable<Object>() {
+		public Object call() {
+		    task.run();
+		    return null;
+		}
+	    });
+    }
+
+    /**
+     * Stop accepting tasks, and wait for the workers to finish the tasks
+     * already queued and exit.
+     */
+    public void shutdown() {
+	Lib.assertTrue(!shutdown);
+	shutdown = true;
+
+	for (int i=0; i<workers.length; i++)
+	    tasks.add(stop);
+	for (int i=0; i<workers.length; i++)
+	    workers[i].join();
+    }
+
+    private static class Job<T> {
+	Job(Callable<T> task, KFuture<T> future) {
+	    this.task = task;
+	    this.future = future;
+	}
+
+	void run() {
+	    T value = null;
+	    Exception failure = null;
+	    future.started();
+	    try {
+		value = task.call();
+	    }
+	    catch (Exception e) {
+		failure = e;
+	    }
+	    future.complete(value, failure);
+	}
+
+	private Callable<T> task;
+	private KFuture<T> future;
+    }
+
+    private class Worker implements Runnable {
+	public void run() {
+	    Object job;
+	    while ((job = tasks.removeFirst()) != stop)
+		((Job<?>) job).run();
+	}
+    }
+
+    /**
+     * Test that this module is working.
+     */
+    public static void selfTest() {
+	KExecutor executor = new KExecutor(3);
+
+	ArrayList<KFuture<Integer>> squares = new ArrayList<KFuture<Integer>>();
+	for (int i=0; i<10; i++) {
+	    final int n = i;
+	    squares.add(executor.submit(new Callable<Integer>() {
+		    public Integer call() {
+			KThread.yield();
+			return n * n;
+		    }
+		}));
+	}
+
+	final int[] callbacks = { 0 };
+	for (int i=0; i<10; i++) {
+	    squares.get(i).addCallback(new Runnable() {
+		    public void run() { callbacks[0]++; }
+		});
+	}
+
+	for (int i=0; i<10; i++)
+	    Lib.assertTrue(squares.get(i).get() == i * i);
+
+	KFuture<Integer> failed = executor.submit(new Callable<Integer>() {
+		public Integer call() {
+		    throw new IllegalStateException();
+		}
+	    });
+	try {
+	    failed.get();
+	    Lib.assertNotReached();
+	}
+	catch (RuntimeException e) {
+	    Lib.assertTrue(e.getCause() instanceof IllegalStateException);
+	}
+
+	// a worker runs the callbacks after waking the threads in get(), so
+	// they are only known to have run once the workers have exited
+	executor.shutdown();
+	Lib.assertTrue(callbacks[0] == 10);
+    }
+
+    private KThread[] workers;
+    private SynchList tasks = new SynchList();
+    private boolean shutdown = false;
+    private final Object stop = new Object();
+}
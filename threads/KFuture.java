@@ -0,0 +1,136 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+
+/**
+ * The result of a task submitted to a <tt>KExecutor</tt>. A thread can wait
+ * for the result with <tt>get()</tt>, wait for a bounded time, or register a
+ * callback that runs once the task has completed.
+ *
+ * @see	nachos.threads.KExecutor
+ */
+public class KFuture<T> {
+    /**
+     * Allocate a new, uncompleted future.
+     */
+    KFuture() {
+    }
+
+    /**
+     * Wait for the task to complete and return its result.
+     *
+     * @return	the value returned by the task.
+     * @throws	RuntimeException	if the task threw an exception; the
+     *					exception is its cause.
+     */
+    public T get() {
+	lock.acquire();
+	while (!done)
+	    completed.sleep();
+	lock.release();
+
+	return result();
+    }
+
+    /**
+     * Wait at most <i>ticks</i> clock ticks for the task to complete and
+     * return its result. Since a task may return <tt>null</tt>, use
+     * <tt>isDone()</tt> to tell a timeout from a <tt>null</tt> result.
+     *
+     * @param	ticks	the maximum number of clock ticks to wait.
+     * @return	the value returned by the task, or <tt>null</tt> if it did not
+     *		complete in time.
+     * @throws	RuntimeException	if the task threw an exception; the
+     *					exception is its cause.
+     */
+    public T get(long ticks) {
+	long deadline = Machine.timer().getTime() + ticks;
+
+	lock.acquire();
+	long remaining = ticks;
+	while (!done && remaining > 0) {
+	    completed.sleepFor(remaining);
+	    remaining = deadline - Machine.timer().getTime();
+	}
+	boolean finished = done;
+	lock.release();
+
+	return finished ? result() : null;
+    }
+
+    /**
+     * Test whether the task has completed, either by returning or by throwing
+     * an exception.
+     *
+     * @return	<tt>true</tt> if the task has completed.
+     */
+    public boolean isDone() {
+	return done;
+    }
+
+    /**
+     * Arrange for <i>callback</i> to run once the task has completed. It runs
+     * on the worker thread that completed the task, or immediately on the
+     * current thread if the task has already completed.
+     *
+     * @param	callback	the callback to run.
+     */
+    public void addCallback(Runnable callback) {
+	Lib.assertTrue(callback != null);
+
+	lock.acquire();
+	boolean runNow = done;
+	if (!runNow)
+	    callbacks.add(callback);
+	lock.release();
+
+	if (runNow)
+	    callback.run();
+    }
+
+    /**
+     * Called by the worker thread that starts running the task, so that
+     * threads waiting for the result donate priority to it.
+     */
+    void started() {
+	completed.setSignaller(KThread.currentThread());
+    }
+
+    /**
+     * Complete this future, waking up all waiting threads and running the
+     * callbacks.
+     *
+     * @param	value	the value returned by the task.
+     * @param	failure	the exception thrown by the task, or <tt>null</tt>.
+     */
+    void complete(T value, Exception failure) {
+	lock.acquire();
+	Lib.assertTrue(!done);
+	this.value = value;
+	this.failure = failure;
+	done = true;
+	completed.wakeAll();
+	ArrayList<Runnable> toRun = callbacks;
+	callbacks = null;
+	lock.release();
+
+	for (Runnable callback : toRun)
+	    callback.run();
+    }
+
+    private T result() {
+	if (failure != null)
+	    throw new RuntimeException(failure);
+	return value;
+    }
+
+    private boolean done = false;
+    private T value = null;
+    private Exception failure = null;
+    private ArrayList<Runnable> callbacks = new ArrayList<Runnable>();
+
+    private Lock lock = new Lock();
+    private Condition2 completed = new Condition2(lock, true);
+}
@@ -59,7 +59,7 @@ public class KThread {
 			tcb = new TCB();
 		}
 		else {
-			readyQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+			readyQueue = ThreadedKernel.scheduler.newReadyQueue();
 			readyQueue.acquire(this);
 
 			currentThread = this;
@@ -205,6 +205,9 @@ public class KThread {
 
 		Machine.autoGrader().finishingCurrentThread();
 
+		if (currentThread.period != 0)
+			utilisation -= currentThread.density;
+
 		if(currentThread.joined){
 			currentThread.waitForJoin.nextThread().ready();
 			
@@ -285,8 +288,10 @@ public class KThread {
 		Lib.assertTrue(status != statusReady);
 
 		status = statusReady;
-		if (this != idleThread)
+		if (this != idleThread) {
+			readyTime = Machine.timer().getTime();
 			readyQueue.waitForAccess(this);
+		}
 
 		Machine.autoGrader().readyThread(this);
 	}
@@ -322,6 +327,88 @@ public class KThread {
 		
 	}
 
+	/**
+	 * Declare this thread to be a periodic real-time task. A job of the task is
+	 * released every <i>period</i> ticks, starting now; each job needs at most
+	 * <i>cost</i> ticks of processor time and must complete within
+	 * <i>deadline</i> ticks of its release. A job completes when the thread
+	 * calls <tt>waitForNextPeriod()</tt>.
+	 * 
+	 * <p>
+	 * The task is only admitted if the total utilisation of all periodic
+	 * threads, each contributing <i>cost</i> divided by the smaller of
+	 * <i>period</i> and <i>deadline</i>, stays at or below 1. Deadlines are
+	 * only meaningful with a deadline-aware scheduler, such as
+	 * <tt>DeadlineScheduler</tt>. This thread must be new or the current
+	 * thread, and must not already be periodic.
+	 * 
+	 * @param period
+	 *            the number of ticks between releases.
+	 * @param deadline
+	 *            the number of ticks after its release by which a job must
+	 *            complete.
+	 * @param cost
+	 *            the processor time each job needs.
+	 * @return <tt>true</tt> if the task was admitted.
+	 */
+	public boolean setPeriodic(long period, long deadline, long cost) {
+		Lib.assertTrue(period > 0 && deadline > 0 && cost > 0);
+		Lib.assertTrue(status == statusNew || this == currentThread);
+		Lib.assertTrue(this.period == 0);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		double density = (double) cost / Math.min(period, deadline);
+		boolean admitted = (utilisation + density <= 1.0);
+		if (admitted) {
+			utilisation += density;
+			this.density = density;
+			this.period = period;
+			this.relativeDeadline = deadline;
+			this.release = Machine.timer().getTime();
+			this.deadline = release + deadline;
+		}
+
+		Machine.interrupt().restore(intStatus);
+		return admitted;
+	}
+
+	/**
+	 * Complete the current job of the current thread, which must be periodic,
+	 * and sleep until the next job is released. If the job completed after its
+	 * deadline, the miss is counted in <tt>SchedulingStats</tt>. If the next
+	 * release has already passed, returns immediately.
+	 */
+	public static void waitForNextPeriod() {
+		KThread thread = currentThread;
+		Lib.assertTrue(thread.period != 0);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		long time = Machine.timer().getTime();
+		SchedulingStats.periodicJobs++;
+		if (time > thread.deadline)
+			SchedulingStats.deadlineMisses++;
+
+		thread.release += thread.period;
+		thread.deadline = thread.release + thread.relativeDeadline;
+
+		Machine.interrupt().restore(intStatus);
+
+		if (thread.release > time)
+			ThreadedKernel.alarm.waitUntil(thread.release - time);
+	}
+
+	/**
+	 * Get the absolute deadline of the current job of this thread.
+	 * 
+	 * @return the time by which the current job must complete, or
+	 *         <tt>Long.MAX_VALUE</tt> if this thread is not periodic.
+	 */
+	public long getDeadline() {
+		return deadline;
+	}
+
 	/**
 	 * Create the idle thread. Whenever there are no threads ready to be run,
 	 * and <tt>runNextThread()</tt> is called, it will run the idle thread. The
@@ -412,6 +499,11 @@ public class KThread {
 
 		status = statusRunning;
 
+		if (readyTime >= 0) {
+			SchedulingStats.readyLatency.add(Machine.timer().getTime() - readyTime);
+			readyTime = -1;
+		}
+
 		if (toBeDestroyed != null) {
 			toBeDestroyed.tcb.destroy();
 			toBeDestroyed.tcb = null;
@@ -488,6 +580,18 @@ public class KThread {
 	/** Number of times the KThread constructor was called. */
 	private static int numCreated = 0;
 
+	/** The time this thread was last made ready, or -1 once it runs. */
+	private long readyTime = -1;
+
+	/** The period of this thread, or 0 if it is not periodic. */
+	private long period = 0;
+	private long relativeDeadline = 0;
+	private long release = 0;
+	private long deadline = Long.MAX_VALUE;
+	private double density = 0;
+	/** The total utilisation of all admitted periodic threads. */
+	private static double utilisation = 0;
+
 	private static ThreadQueue readyQueue = null;
 	private static KThread currentThread = null;
 	private static KThread toBeDestroyed = null;
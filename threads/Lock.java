@@ -36,18 +36,90 @@ public class Lock {
 	boolean intStatus = Machine.interrupt().disable();
 	KThread thread = KThread.currentThread();
 
-	if (lockHolder != null) {
+	if (lockHolder != null)
+	    waitForLock(thread, -1);
+	else
+	    take(thread);
+
+	Lib.assertTrue(lockHolder == thread);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically acquire this lock, giving up after <i>ticks</i> clock ticks.
+     * The current thread must not already hold this lock.
+     *
+     * @param	ticks	the maximum number of clock ticks to wait.
+     * @return	<tt>true</tt> if the lock was acquired, or <tt>false</tt> if
+     *		the wait timed out.
+     */
+    public boolean tryAcquire(long ticks) {
+	Lib.assertTrue(!isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	if (lockHolder == null)
+	    take(thread);
+	else if (ticks > 0)
+	    waitForLock(thread, ticks);
+
+	boolean acquired = (lockHolder == thread);
+
+	Machine.interrupt().restore(intStatus);
+	return acquired;
+    }
+
+    /**
+     * Take the free lock without waiting.
+     */
+    private void take(KThread thread) {
+	waitQueue.acquire(thread);
+	lockHolder = thread;
+
+	if (profile != null) {
+	    profile.acquired();
+	    holdStart = Machine.timer().getTime();
+	}
+    }
+
+    /**
+     * Wait on the lock's queue until the releasing thread hands the lock
+     * over, or for at most <i>ticks</i> ticks if <i>ticks</i> is not
+     * negative. Records the wait in <tt>SchedulingStats</tt> and the
+     * profiler.
+     */
+    private void waitForLock(KThread thread, long ticks) {
+	long waitStart = Machine.timer().getTime();
+
+	if (ticks < 0) {
 	    waitQueue.waitForAccess(thread);
 	    KThread.sleep();
 	}
 	else {
-	    waitQueue.acquire(thread);
-	    lockHolder = thread;
+	    ThreadedKernel.alarm.waitOn(waitQueue, ticks);
 	}
 
-	Lib.assertTrue(lockHolder == thread);
+	long waited = Machine.timer().getTime() - waitStart;
+	SchedulingStats.lockWait.add(waited);
 
-	Machine.interrupt().restore(intStatus);
+	// compare priorities as they are now, against the holder the thread
+	// was last kept waiting by
+	KThread holder = (lockHolder == thread) ? releasedBy : lockHolder;
+	if (holder != null && waited > SchedulingStats.getInversionThreshold() &&
+	    ThreadedKernel.scheduler.getPriority(thread) >
+	    ThreadedKernel.scheduler.getPriority(holder)) {
+	    SchedulingStats.inversions++;
+	    Lib.debug(dbgLock, "Priority inversion: " + thread + " waited "
+		      + waited + " ticks for " + holder);
+	}
+
+	if (profile != null) {
+	    if (lockHolder == thread)
+		profile.acquired();
+	    profile.waited(waited);
+	}
     }
 
     /**
@@ -58,12 +130,35 @@ public class Lock {
 
 	boolean intStatus = Machine.interrupt().disable();
 
+	if (profile != null) {
+	    long time = Machine.timer().getTime();
+	    profile.held(time - holdStart);
+	    holdStart = time;
+	}
+
+	releasedBy = lockHolder;
 	if ((lockHolder = waitQueue.nextThread()) != null)
 	    lockHolder.ready();
 	
 	Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Make a sleeping thread wait for this lock, as if it had called
+     * <tt>acquire()</tt>; it is woken up once the lock is handed to it. Used
+     * by <tt>Condition2</tt> to move woken threads straight onto the lock's
+     * queue. The current thread must hold this lock, and interrupts must be
+     * disabled.
+     *
+     * @param	thread	the sleeping thread.
+     */
+    void waitForAccess(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	Lib.assertTrue(isHeldByCurrentThread());
+
+	waitQueue.waitForAccess(thread);
+    }
+
     /**
      * Test if the current thread holds this lock.
      *
@@ -73,7 +168,75 @@ public class Lock {
 	return (lockHolder == KThread.currentThread());
     }
 
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+	final Lock lock = new Lock();
+	final Semaphore hold = new Semaphore(0);
+	final boolean[] acquired = { true };
+	boolean donation = (ThreadedKernel.scheduler instanceof PriorityScheduler);
+
+	// a holder that keeps the lock until hold is signalled
+	KThread holder = new KThread(new Runnable() {
+		public void run() {
+		    lock.acquire();
+		    hold.P();
+		    lock.release();
+		}
+	    }).setName("holder");
+	holder.fork();
+	while (lock.lockHolder != holder)
+	    KThread.yield();
+
+	// a high-priority waiter times out, and stops donating to the holder
+	KThread waiter = new KThread(new Runnable() {
+		public void run() {
+		    long start = Machine.timer().getTime();
+		    acquired[0] = lock.tryAcquire(1000);
+		    long waited = Machine.timer().getTime() - start;
+		    Lib.assertTrue(waited >= 1000 &&
+				   waited < 1000 + 2*Stats.TimerTicks);
+		}
+	    }).setName("waiter");
+	boolean intStatus = Machine.interrupt().disable();
+	if (donation)
+	    ThreadedKernel.scheduler.setPriority(waiter, 6);
+	Machine.interrupt().restore(intStatus);
+	waiter.fork();
+	waiter.join();
+	Lib.assertTrue(!acquired[0]);
+	Lib.assertTrue(lock.lockHolder == holder);
+	if (donation) {
+	    intStatus = Machine.interrupt().disable();
+	    Lib.assertTrue(ThreadedKernel.scheduler.getEffectivePriority(holder)
+			   == ThreadedKernel.scheduler.getPriority(holder));
+	    Machine.interrupt().restore(intStatus);
+	}
+
+	// the lock is released well before the deadline
+	new KThread(new Runnable() {
+		public void run() {
+		    ThreadedKernel.alarm.waitUntil(500);
+		    hold.V();
+		}
+	    }).setName("releaser").fork();
+	long start = Machine.timer().getTime();
+	Lib.assertTrue(lock.tryAcquire(100000));
+	Lib.assertTrue(Machine.timer().getTime() - start < 100000);
+	lock.release();
+	holder.join();
+
+	Lib.assertTrue(lock.tryAcquire(0));
+	lock.release();
+    }
+
+    private static final char dbgLock = 'l';
+
     private KThread lockHolder = null;
+    private KThread releasedBy = null;
+    private LockProfiler.Site profile = LockProfiler.site("Lock");
+    private long holdStart;
     private ThreadQueue waitQueue =
 	ThreadedKernel.scheduler.newThreadQueue(true);
 }
@@ -0,0 +1,167 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * A contention profiler for <tt>Lock</tt>, <tt>Semaphore</tt> and
+ * <tt>Condition2</tt>. It is off unless the <tt>LockProfiler.enabled</tt>
+ * configuration key is true.
+ *
+ * <p>
+ * Each primitive has its own counters: the number of acquisitions, a
+ * histogram of the waits in ticks, and, for locks, the total time the lock
+ * was held. A primitive is named after the place that created it, as
+ * <tt>Class.method:line</tt>, and its instance number there, so the second
+ * lock created at one line is <tt>Lock Class.method:line #2</tt>.
+ * <tt>ThreadedKernel.terminate()</tt> prints the primitives that were used,
+ * ranked by total wait, each with its wait histogram; only the first
+ * <tt>maxPrinted</tt> are listed.
+ */
+public final class LockProfiler {
+    private LockProfiler() {
+    }
+
+    /**
+     * Return a new profile site for a primitive being constructed by the
+     * caller, or <tt>null</tt> if profiling is disabled.
+     *
+     * @param	kind	the kind of primitive, e.g. <tt>"Lock"</tt>.
+     * @return	the site to record the primitive's use in, or <tt>null</tt>.
+     */
+    public static Site site(String kind) {
+	if (!isEnabled())
+	    return null;
+
+	String place = kind + " " + creationSite();
+
+	boolean intStatus = Machine.interrupt().disable();
+	Integer count = instances.get(place);
+	int instance = (count == null) ? 1 : count + 1;
+	instances.put(place, instance);
+	Site site = new Site(place + " #" + instance);
+	sites.add(site);
+	Machine.interrupt().restore(intStatus);
+
+	return site;
+    }
+
+    /**
+     * Test whether profiling is enabled.
+     *
+     * @return	<tt>true</tt> if profiling is enabled.
+     */
+    public static boolean isEnabled() {
+	if (enabled == null)
+	    enabled = Config.getBoolean("LockProfiler.enabled", false);
+	return enabled;
+    }
+
+    /**
+     * Print out the sites that have been used, ranked by total wait.
+     */
+    public static void print() {
+	ArrayList<Site> ranked = new ArrayList<Site>();
+	for (Site site : sites) {
+	    if (site.acquisitions > 0)
+		ranked.add(site);
+	}
+	if (ranked.isEmpty())
+	    return;
+
+	Collections.sort(ranked, new Comparator<Site>() {
+		public int compare(Site s1, Site s2) {
+		    long w1 = s1.waits.getTotal(), w2 = s2.waits.getTotal();
+		    if (w1 != w2)
+			return w1 > w2 ? -1 : 1;
+		    return s1.name.compareTo(s2.name);
+		}
+	    });
+
+	System.out.println("Lock profile, by total wait:");
+	for (Site site : ranked.subList(0, Math.min(ranked.size(), maxPrinted))) {
+	    System.out.println("  " + site.name + ": acquired "
+			       + site.acquisitions
+			       + (site.totalHold > 0 ?
+				  ", held " + site.totalHold : ""));
+	    site.waits.print("    ", "wait");
+	}
+	if (ranked.size() > maxPrinted)
+	    System.out.println("  (" + (ranked.size() - maxPrinted)
+			       + " more)");
+    }
+
+    /**
+     * Return the first caller outside this package's synchronization
+     * primitives, as <tt>Class.method:line</tt>.
+     */
+    private static String creationSite() {
+	StackTraceElement[] trace = new Throwable().getStackTrace();
+	for (int i=0; i<trace.length; i++) {
+	    String className = trace[i].getClassName();
+	    if (className.equals(LockProfiler.class.getName()) ||
+		className.equals(Lock.class.getName()) ||
+		className.equals(Semaphore.class.getName()) ||
+		className.equals(Condition2.class.getName()))
+		continue;
+
+	    return className.substring(className.lastIndexOf('.') + 1)
+		+ "." + trace[i].getMethodName()
+		+ ":" + trace[i].getLineNumber();
+	}
+	return "(unknown)";
+    }
+
+    /**
+     * The counters of one primitive. Must be updated with interrupts
+     * disabled.
+     */
+    public static class Site {
+	private Site(String name) {
+	    this.name = name;
+	}
+
+	/**
+	 * Record an acquisition.
+	 */
+	public void acquired() {
+	    acquisitions++;
+	}
+
+	/**
+	 * Record a wait of the specified length.
+	 *
+	 * @param	ticks	the number of ticks the thread waited.
+	 */
+	public void waited(long ticks) {
+	    waits.add(ticks);
+	}
+
+	/**
+	 * Record that a lock was held for the specified length of time.
+	 *
+	 * @param	ticks	the number of ticks the lock was held.
+	 */
+	public void held(long ticks) {
+	    totalHold += ticks;
+	}
+
+	private String name;
+	private long acquisitions = 0, totalHold = 0;
+	private SchedulingStats.Histogram waits =
+	    new SchedulingStats.Histogram();
+    }
+
+    /** The number of primitives <tt>print()</tt> lists. */
+    public static final int maxPrinted = 20;
+
+    private static Boolean enabled = null;
+    private static ArrayList<Site> sites = new ArrayList<Site>();
+    /** The number of primitives created so far at each place. */
+    private static HashMap<String, Integer> instances =
+	new HashMap<String, Integer>();
+}
@@ -155,6 +155,15 @@ public class LotteryScheduler extends PriorityScheduler {
 	    return next.thread;
 	}
 
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+		LotteryThreadState state=getLotteryThreadState(thread);
+		if(!lotteryPool.remove(state)) return false;
+		if(state.waiting==this) state.waiting=null;
+		if(worker!=null) worker.updatePriority(new HashSet<Integer>());
+	    return true;
+	}
+
 	/**
 	 * Return the next thread that <tt>nextThread()</tt> would return,
 	 * without modifying the state of this queue.
@@ -181,7 +190,10 @@ public class LotteryScheduler extends PriorityScheduler {
 	}
 	public void print() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
-	    // implement me (if you want)
+		for(LotteryThreadState s: lotteryPool){
+			System.out.print(s.thread+":"+s.getEffectivePriority()+" ");
+		}
+		if(worker!=null) System.out.print("(held by "+worker.thread+")");
 	}
 
 	/**
@@ -279,6 +291,7 @@ public class LotteryScheduler extends PriorityScheduler {
 			int tmp=pq.getSize();
 			ep+=tmp;
 		}
+		donation.update(ep, priority);
 		if(ep!=getEffectivePriority()){
 			if(waiting!=null) waiting.lotteryPool.remove(this);
 			effectivePriority=ep;
@@ -287,7 +300,7 @@ public class LotteryScheduler extends PriorityScheduler {
 				HashSet<Integer> newmask=new HashSet<>();
 				newmask.addAll(mask);
 				newmask.add(index);
-				waiting.worker.updatePriority(newmask);
+				if(waiting.worker!=null) waiting.worker.updatePriority(newmask);
 			}
 		}
 		
@@ -325,6 +338,7 @@ public class LotteryScheduler extends PriorityScheduler {
 	protected int effectivePriority;
 	public long startTime;
 	public int index;
+	private SchedulingStats.Donation donation=new SchedulingStats.Donation();
 	
 	protected ArrayList<PriorityQueue> working=new ArrayList<>();
 	protected PriorityQueue waiting=null;
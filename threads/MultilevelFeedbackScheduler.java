@@ -0,0 +1,350 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * A multi-level feedback queue scheduler.
+ *
+ * <p>
+ * Threads are kept in a number of levels, level 0 being the most favoured.
+ * The next thread to be dequeued is always the thread that has been waiting
+ * longest in the lowest non-empty level. A thread's level is not fixed but
+ * follows its behaviour on the processor:
+ *
+ * <ul>
+ * <li>a thread that uses up the quantum of its level (the quantum doubles with
+ * every level) is demoted one level;
+ * <li>a thread that blocks before using up its quantum, such as a thread
+ * waiting for console or file I/O, is promoted one level when it is woken;
+ * <li>every <tt>boostInterval</tt> ticks all threads are moved back to level
+ * 0, so that CPU-bound threads cannot starve.
+ * </ul>
+ *
+ * <p>
+ * The number of levels, the quantum of level 0 and the boost interval are read
+ * from the <tt>MultilevelFeedbackScheduler.levels</tt>,
+ * <tt>MultilevelFeedbackScheduler.quantum</tt> and
+ * <tt>MultilevelFeedbackScheduler.boostInterval</tt> configuration keys.
+ * Because the timer interrupt arrives every <tt>Stats.TimerTicks</tt> give or
+ * take 5%, a thread counts as having used its quantum once it is within half
+ * a timer interval of it. A thread preempted <i>n</i> times at a level whose
+ * quantum is <i>n</i> timer intervals is then always demoted, and one
+ * preempted fewer times never is, whatever the jitter (for quanta of up to
+ * ten intervals).
+ *
+ * <p>
+ * Processor time is only accounted on the ready queue, which is allocated
+ * through <tt>newReadyQueue()</tt>. Other queues simply favour threads of
+ * lower levels. This scheduler does not donate priority; the periodic boost
+ * bounds how long a lock holder can be kept off the processor.
+ */
+public class MultilevelFeedbackScheduler extends Scheduler {
+    /**
+     * Allocate a new multi-level feedback queue scheduler.
+     */
+    public MultilevelFeedbackScheduler() {
+	levels = Config.getInteger("MultilevelFeedbackScheduler.levels", 4);
+	quantum = Config.getInteger("MultilevelFeedbackScheduler.quantum",
+				    Stats.TimerTicks);
+	boostInterval =
+	    Config.getInteger("MultilevelFeedbackScheduler.boostInterval",
+			      50*Stats.TimerTicks);
+
+	Lib.assertTrue(levels > 0 && quantum > 0 && boostInterval > 0);
+
+	slack = Math.min(quantum, Stats.TimerTicks) / 2;
+    }
+
+    /**
+     * Allocate a new multi-level feedback thread queue.
+     *
+     * @param	transferPriority	ignored. This scheduler does not
+     *					donate priority.
+     * @return	a new multi-level feedback thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new FeedbackQueue(false);
+    }
+
+    /**
+     * Allocate the ready queue, the only queue on which processor time is
+     * accounted.
+     *
+     * @return	the new ready queue.
+     */
+    public ThreadQueue newReadyQueue() {
+	Lib.assertTrue(readyQueue == null);
+
+	readyQueue = new FeedbackQueue(true);
+	return readyQueue;
+    }
+
+    /**
+     * Return the priority of the specified thread. The priority is the
+     * thread's level counted from the least favoured one, so that threads with
+     * a higher priority are chosen first.
+     */
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return levels - 1 - getThreadState(thread).level;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	return getPriority(thread);
+    }
+
+    /**
+     * Move the specified thread to the level corresponding to
+     * <i>priority</i>. The thread keeps its level only until its behaviour
+     * moves it elsewhere.
+     */
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= 0 && priority < levels);
+
+	getThreadState(thread).setLevel(levels - 1 - priority);
+    }
+
+    /**
+     * Return the quantum of the specified level.
+     *
+     * @param	level	the level.
+     * @return	the number of ticks a thread at <i>level</i> may use before it
+     *		is demoted.
+     */
+    public long getQuantum(int level) {
+	return (long) quantum << level;
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * Move every thread back to level 0. Threads waiting on the ready queue
+     * are moved immediately; all other threads are moved the next time they
+     * are accounted for.
+     */
+    private void boost(long time) {
+	lastBoost = time;
+	boostCount++;
+
+	for (int i=1; i<levels; i++) {
+	    ArrayDeque<ThreadState> level = readyQueue.waitQueue.get(i);
+	    for (Iterator<ThreadState> it=level.iterator(); it.hasNext(); ) {
+		ThreadState state = it.next();
+		state.checkBoost();
+		readyQueue.waitQueue.get(0).add(state);
+	    }
+	    level.clear();
+	}
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that keeps one FIFO queue per level.
+     */
+    protected class FeedbackQueue extends ThreadQueue {
+	FeedbackQueue(boolean processorQueue) {
+	    this.processorQueue = processorQueue;
+
+	    waitQueue = new ArrayList<ArrayDeque<ThreadState>>(levels);
+	    for (int i=0; i<levels; i++)
+		waitQueue.add(new ArrayDeque<ThreadState>());
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    if (processorQueue) {
+		state.checkBoost();
+		if (thread == KThread.currentThread())
+		    state.charge();
+		else if (state.blockedEarly)
+		    state.promote();
+	    }
+
+	    waitQueue.get(state.level).add(state);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (processorQueue) {
+		long time = Machine.timer().getTime();
+		if (time - lastBoost >= boostInterval)
+		    boost(time);
+
+		// the current thread is giving up the processor; if it did
+		// not yield, it is blocking or finishing
+		ThreadState current = getThreadState(KThread.currentThread());
+		if (!current.charged) {
+		    current.checkBoost();
+		    current.blockedEarly = !current.charge();
+		}
+	    }
+
+	    for (int i=0; i<levels; i++) {
+		ThreadState state = waitQueue.get(i).poll();
+		if (state != null) {
+		    if (processorQueue)
+			state.dispatch();
+		    return state.thread;
+		}
+	    }
+
+	    return null;
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (processorQueue)
+		getThreadState(thread).dispatch();
+	}
+
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    for (int i=0; i<levels; i++) {
+		if (waitQueue.get(i).remove(state))
+		    return true;
+	    }
+	    return false;
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<levels; i++) {
+		System.out.print("[" + i + "]");
+		for (Iterator<ThreadState> it=waitQueue.get(i).iterator();
+		     it.hasNext(); )
+		    System.out.print(" " + it.next().thread);
+		System.out.println();
+	    }
+	}
+
+	private boolean processorQueue;
+	private ArrayList<ArrayDeque<ThreadState>> waitQueue;
+    }
+
+    /**
+     * The scheduling state of a thread: its level, and how much of the
+     * quantum of that level it has used.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class ThreadState {
+	/**
+	 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+	 * specified thread. New threads start at level 0.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public ThreadState(KThread thread) {
+	    this.thread = thread;
+	    this.boostSeen = boostCount;
+	}
+
+	/**
+	 * Move the associated thread to the specified level, forgetting the
+	 * time it has used.
+	 */
+	void setLevel(int level) {
+	    Lib.assertTrue(level >= 0 && level < levels);
+
+	    this.level = level;
+	    used = 0;
+	}
+
+	/**
+	 * Called when the associated thread is dispatched from the ready queue.
+	 */
+	void dispatch() {
+	    dispatchTime = Machine.timer().getTime();
+	    charged = false;
+	    blockedEarly = false;
+	}
+
+	/**
+	 * Charge the associated thread for the time since it was dispatched,
+	 * demoting it if it has used up the quantum of its level, give or take
+	 * half a timer interval.
+	 *
+	 * @return	<tt>true</tt> if the thread was demoted.
+	 */
+	boolean charge() {
+	    long time = Machine.timer().getTime();
+	    used += time - dispatchTime;
+	    dispatchTime = time;
+	    charged = true;
+
+	    if (used + slack < getQuantum(level))
+		return false;
+
+	    if (level < levels-1)
+		level++;
+	    used = 0;
+	    return true;
+	}
+
+	/**
+	 * Promote the associated thread one level.
+	 */
+	void promote() {
+	    if (level > 0)
+		level--;
+	    used = 0;
+	    blockedEarly = false;
+	}
+
+	/**
+	 * Move the associated thread to level 0 if a boost happened since it
+	 * was last accounted for.
+	 */
+	void checkBoost() {
+	    if (boostSeen != boostCount) {
+		boostSeen = boostCount;
+		setLevel(0);
+	    }
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The level of the associated thread. */
+	protected int level = 0;
+	/** The ticks used at the current level. */
+	protected long used = 0;
+
+	private long dispatchTime = 0;
+	private boolean charged = false;
+	private boolean blockedEarly = false;
+	private int boostSeen;
+    }
+
+    private int levels;
+    private int quantum;
+    private int boostInterval;
+    private int slack;
+
+    private FeedbackQueue readyQueue = null;
+    private long lastBoost = 0;
+    private int boostCount = 0;
+}
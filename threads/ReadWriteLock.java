@@ -0,0 +1,264 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.LinkedList;
+
+/**
+ * A <tt>ReadWriteLock</tt> can be held either by any number of <i>readers</i>
+ * at once, or by a single <i>writer</i>. It has four operations:
+ *
+ * <ul>
+ * <li><tt>acquireRead()</tt>: wait until no writer holds or is waiting for the
+ * lock, then become one of its readers.
+ * <li><tt>releaseRead()</tt>: stop being a reader, handing the lock to the
+ * next writer if this was the last reader.
+ * <li><tt>acquireWrite()</tt>: wait until the lock is free, then become its
+ * writer.
+ * <li><tt>releaseWrite()</tt>: hand the lock to the next waiting writer if
+ * there is one, or otherwise to all waiting readers.
+ * </ul>
+ *
+ * <p>
+ * Writers are preferred: once a writer is waiting, new readers wait behind
+ * it. Threads waiting for the lock donate priority to a thread holding it:
+ * to the writer, or, while readers hold the lock, to the reader that has held
+ * it longest.
+ */
+public class ReadWriteLock {
+    /**
+     * Allocate a new read-write lock. The lock will initially be <i>free</i>.
+     */
+    public ReadWriteLock() {
+    }
+
+    /**
+     * Atomically acquire this lock for reading. The current thread must not
+     * already hold this lock.
+     */
+    public void acquireRead() {
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	Lib.assertTrue(writer != thread && !readers.contains(thread));
+
+	if (writer == null && waitingWriters == 0) {
+	    readers.add(thread);
+	    if (readers.size() == 1) {
+		writeQueue.acquire(thread);
+		readQueue.setHolder(thread);
+	    }
+	}
+	else {
+	    waitingReaders++;
+	    readQueue.waitForAccess(thread);
+	    KThread.sleep();
+	}
+
+	Lib.assertTrue(readers.contains(thread));
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically release this lock, which the current thread holds for
+     * reading.
+     */
+    public void releaseRead() {
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	boolean wasFirst = (readers.peek() == thread);
+	Lib.assertTrue(readers.remove(thread));
+
+	if (readers.isEmpty()) {
+	    if (waitingWriters > 0)
+		grantWrite();
+	}
+	else if (wasFirst) {
+	    // waiting threads donate to the first reader
+	    writeQueue.setHolder(readers.peek());
+	    readQueue.setHolder(readers.peek());
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically acquire this lock for writing. The current thread must not
+     * already hold this lock.
+     */
+    public void acquireWrite() {
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	Lib.assertTrue(writer != thread && !readers.contains(thread));
+
+	if (writer == null && readers.isEmpty()) {
+	    writer = thread;
+	    writeQueue.acquire(thread);
+	    readQueue.acquire(thread);
+	}
+	else {
+	    waitingWriters++;
+	    writeQueue.waitForAccess(thread);
+	    KThread.sleep();
+	}
+
+	Lib.assertTrue(writer == thread);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically release this lock, which the current thread holds for
+     * writing.
+     */
+    public void releaseWrite() {
+	Lib.assertTrue(isWriteHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	writer = null;
+	if (waitingWriters > 0) {
+	    grantWrite();
+	}
+	else if (waitingReaders > 0) {
+	    KThread thread;
+	    while ((thread = readQueue.nextThread()) != null) {
+		readers.add(thread);
+		thread.ready();
+	    }
+	    waitingReaders = 0;
+	    writeQueue.acquire(readers.peek());
+	    readQueue.setHolder(readers.peek());
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Test if the current thread holds this lock for writing.
+     *
+     * @return	true if the current thread holds this lock for writing.
+     */
+    public boolean isWriteHeldByCurrentThread() {
+	return (writer == KThread.currentThread());
+    }
+
+    /**
+     * Test if the current thread holds this lock for reading.
+     *
+     * @return	true if the current thread holds this lock for reading.
+     */
+    public boolean isReadHeldByCurrentThread() {
+	boolean intStatus = Machine.interrupt().disable();
+	boolean held = readers.contains(KThread.currentThread());
+	Machine.interrupt().restore(intStatus);
+	return held;
+    }
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+	final ReadWriteLock rw = new ReadWriteLock();
+	final Semaphore hold = new Semaphore(0);
+	final int[] started = { 0 };
+	final StringBuffer order = new StringBuffer();
+	boolean donation = (ThreadedKernel.scheduler instanceof PriorityScheduler);
+
+	// two readers wait behind a writer and are granted the lock together
+	rw.acquireWrite();
+	KThread[] readers = new KThread[2];
+	for (int i=0; i<2; i++) {
+	    readers[i] = new KThread(new Runnable() {
+		    public void run() {
+			started[0]++;
+			rw.acquireRead();
+			hold.P();
+			rw.releaseRead();
+		    }
+		}).setName("reader");
+	    readers[i].fork();
+	}
+	while (started[0] < 2)
+	    KThread.yield();
+	rw.releaseWrite();
+
+	// a writer waits for the readers, and a new reader waits behind it
+	KThread writer = new KThread(new Runnable() {
+		public void run() {
+		    started[0]++;
+		    rw.acquireWrite();
+		    order.append('w');
+		    rw.releaseWrite();
+		}
+	    }).setName("writer");
+	KThread late = new KThread(new Runnable() {
+		public void run() {
+		    started[0]++;
+		    rw.acquireRead();
+		    order.append('r');
+		    rw.releaseRead();
+		}
+	    }).setName("late reader");
+
+	boolean intStatus = Machine.interrupt().disable();
+	if (donation) {
+	    ThreadedKernel.scheduler.setPriority(writer, 3);
+	    ThreadedKernel.scheduler.setPriority(late, 6);
+	}
+	Machine.interrupt().restore(intStatus);
+
+	writer.fork();
+	while (started[0] < 3)
+	    KThread.yield();
+	late.fork();
+	while (started[0] < 4)
+	    KThread.yield();
+	for (int i=0; i<10; i++)
+	    KThread.yield();
+	Lib.assertTrue(order.length() == 0);
+
+	// both waiting threads donate to the reader that has held the lock
+	// longest
+	if (donation) {
+	    intStatus = Machine.interrupt().disable();
+	    Lib.assertTrue(rw.readers.size() == 2);
+	    Lib.assertTrue(ThreadedKernel.scheduler.getEffectivePriority(
+				rw.readers.peek()) >= 6);
+	    Machine.interrupt().restore(intStatus);
+	}
+
+	hold.V();
+	hold.V();
+	for (int i=0; i<2; i++)
+	    readers[i].join();
+	writer.join();
+	late.join();
+	Lib.assertTrue(order.toString().equals("wr"));
+    }
+
+    /**
+     * Hand the lock to the next waiting writer.
+     */
+    private void grantWrite() {
+	writer = writeQueue.nextThread();
+	waitingWriters--;
+
+	// waiting readers donate to the new writer
+	readQueue.setHolder(writer);
+	writer.ready();
+    }
+
+    private KThread writer = null;
+    private LinkedList<KThread> readers = new LinkedList<KThread>();
+    private int waitingReaders = 0;
+    private int waitingWriters = 0;
+
+    private ThreadQueue readQueue =
+	ThreadedKernel.scheduler.newThreadQueue(true);
+    private ThreadQueue writeQueue =
+	ThreadedKernel.scheduler.newThreadQueue(true);
+}
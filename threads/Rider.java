@@ -5,6 +5,13 @@ import nachos.machine.*;
 /**
  * A single rider. Each rider accesses the elevator bank through an
  * instance of <tt>RiderControls</tt>.
+ *
+ * <p>
+ * For each stop, a rider presses the direction button, boards the first
+ * elevator that opens on its floor showing its direction, and gets off when
+ * that elevator opens on the stop. If it could not get on before the doors
+ * closed, it presses the button again. How long each ride took is recorded
+ * in <tt>SchedulingStats</tt>.
  */
 public class Rider implements RiderInterface {
     /**
@@ -28,6 +35,15 @@ public class Rider implements RiderInterface {
      *				below.
      */
     public void initialize(RiderControls controls, int[] stops) {
+	this.controls = controls;
+	this.stops = stops;
+
+	doorsOpen = new boolean[controls.getNumElevators()];
+	eventWait = new Semaphore(0);
+
+	controls.setInterruptHandler(new Runnable() {
+		public void run() { eventWait.V(); }
+	    });
     }
 
     /**
@@ -48,5 +64,94 @@ public class Rider implements RiderInterface {
      * <tt>controls.finish()</tt> when the rider is finished.
      */
     public void run() {
+	long start = Machine.timer().getTime();
+
+	for (int i=0; i<stops.length; i++)
+	    ride(stops[i]);
+
+	boolean intStatus = Machine.interrupt().disable();
+	SchedulingStats.elevatorRider(start, Machine.timer().getTime());
+	Machine.interrupt().restore(intStatus);
+
+	controls.finish();
+	Lib.assertNotReached();
     }
+
+    /**
+     * Ride an elevator from the current floor to <i>stop</i>.
+     */
+    private void ride(int stop) {
+	int floor = controls.getFloor();
+	Lib.assertTrue(stop != floor);
+
+	boolean up = (stop > floor);
+	int dir = up ? ElevatorBank.dirUp : ElevatorBank.dirDown;
+	long called = Machine.timer().getTime();
+
+	int elevator;
+	boolean pressed = false;
+	while ((elevator = enter(dir)) == -1) {
+	    if (!pressed)
+		pressed = controls.pressDirectionButton(up);
+
+	    RiderEvent e = getNextEvent();
+	    if (e.event == RiderEvent.eventDoorsOpened) {
+		doorsOpen[e.elevator] = true;
+	    }
+	    else if (e.event == RiderEvent.eventDoorsClosed) {
+		doorsOpen[e.elevator] = false;
+		// the call may have been answered without us
+		pressed = false;
+	    }
+	}
+	long entered = Machine.timer().getTime();
+
+	controls.pressFloorButton(stop);
+	while (true) {
+	    RiderEvent e = getNextEvent();
+	    if (e.event == RiderEvent.eventDoorsOpened && e.floor == stop &&
+		controls.exitElevator(stop))
+		break;
+	    // the doors closed before we got off
+	    if (e.event == RiderEvent.eventDoorsClosed && e.floor == stop)
+		controls.pressFloorButton(stop);
+	}
+
+	// only the elevator we got off is known to be open on this floor
+	java.util.Arrays.fill(doorsOpen, false);
+	doorsOpen[elevator] = true;
+
+	boolean intStatus = Machine.interrupt().disable();
+	SchedulingStats.elevatorWait.add(entered - called);
+	SchedulingStats.elevatorTrip.add(Machine.timer().getTime() - called);
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Try to enter an elevator that is open on this floor and going in
+     * direction <i>dir</i>.
+     *
+     * @return	the elevator entered, or -1 if none could be entered.
+     */
+    private int enter(int dir) {
+	for (int elevator=0; elevator<doorsOpen.length; elevator++) {
+	    if (doorsOpen[elevator] &&
+		controls.getDirectionDisplay(elevator) == dir &&
+		controls.enterElevator(elevator))
+		return elevator;
+	}
+	return -1;
+    }
+
+    private RiderEvent getNextEvent() {
+	RiderEvent event;
+	while ((event = controls.getNextEvent()) == null)
+	    eventWait.P();
+	return event;
+    }
+
+    private RiderControls controls;
+    private int[] stops;
+    private boolean[] doorsOpen;
+    private Semaphore eventWait;
 }
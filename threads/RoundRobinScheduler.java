@@ -69,6 +69,19 @@ public class RoundRobinScheduler extends Scheduler {
 	    Lib.assertTrue(waitQueue.isEmpty());
 	}
 
+	/**
+	 * A FIFO queue does not donate priority, so it has no holder.
+	 */
+	public void setHolder(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	}
+
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    return waitQueue.remove(thread);
+	}
+
 	/**
 	 * Print out the contents of the queue.
 	 */
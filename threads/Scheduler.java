@@ -52,6 +52,19 @@ public abstract class Scheduler {
      */
     public abstract ThreadQueue newThreadQueue(boolean transferPriority);
 
+    /**
+     * Allocate the queue of threads waiting for the processor. This is
+     * called once, by the first <tt>KThread</tt>. Schedulers that account
+     * processor time on their ready queue override this to tell it apart
+     * from their other queues; by default it is an ordinary queue that does
+     * not transfer priority.
+     *
+     * @return	a new ready queue.
+     */
+    public ThreadQueue newReadyQueue() {
+	return newThreadQueue(false);
+    }
+
     /**
      * Get the priority of the specified thread. Must be called with
      * interrupts disabled.
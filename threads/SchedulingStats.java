@@ -0,0 +1,227 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * Scheduling statistics kept by the kernel. The machine's <tt>Stats</tt>
+ * object can only be updated by the simulation itself, so the threads package
+ * keeps its own counters here and <tt>ThreadedKernel.terminate()</tt> prints
+ * them just before the machine halts and prints its statistics.
+ *
+ * <p>
+ * All counters must be updated with interrupts disabled.
+ */
+public final class SchedulingStats {
+    private SchedulingStats() {
+    }
+
+    /**
+     * Print out the statistics that have been collected. Categories that
+     * were never used are left out.
+     */
+    public static void print() {
+	readyLatency.print("Ready-to-run latency");
+	lockWait.print("Lock wait");
+	if (donatedTicks > 0)
+	    System.out.println("Priority donation: " + donatedTicks
+			       + " ticks run under donated priority");
+	if (inversions > 0)
+	    System.out.println("Priority inversions: " + inversions
+			       + " waits longer than " + getInversionThreshold()
+			       + " ticks behind a lower-priority holder");
+	LockProfiler.print();
+	elevatorWait.print("Elevator wait");
+	elevatorTrip.print("Elevator trip");
+	if (elevatorRiders > 0) {
+	    long ticks = Math.max(elevatorLast - elevatorFirst, 1);
+	    System.out.println("Elevator throughput: " + elevatorRiders
+			       + " riders in " + ticks + " ticks, "
+			       + (elevatorRiders*1000000/ticks)/1000.0
+			       + " per 1000 ticks");
+	}
+	if (periodicJobs > 0) {
+	    System.out.println("Real-time: jobs " + periodicJobs
+			       + ", deadline misses " + deadlineMisses);
+	}
+    }
+
+    /**
+     * Return how long, in ticks, a thread may wait for a lock held by a
+     * lower-priority thread before the wait is counted as a priority
+     * inversion. Read from the <tt>SchedulingStats.inversionThreshold</tt>
+     * configuration key.
+     *
+     * @return	the inversion threshold.
+     */
+    public static long getInversionThreshold() {
+	if (inversionThreshold < 0)
+	    inversionThreshold =
+		Config.getInteger("SchedulingStats.inversionThreshold",
+				  10*Stats.TimerTicks);
+	return inversionThreshold;
+    }
+
+    /**
+     * Record that an elevator rider has made all its stops.
+     *
+     * @param	start	the time the rider started.
+     * @param	finish	the time the rider got off at its last stop.
+     */
+    public static void elevatorRider(long start, long finish) {
+	if (elevatorRiders == 0 || start < elevatorFirst)
+	    elevatorFirst = start;
+	if (finish > elevatorLast)
+	    elevatorLast = finish;
+	elevatorRiders++;
+    }
+
+    /**
+     * Keeps track of how long one thread runs with an effective priority
+     * above its own, adding the time to <tt>donatedTicks</tt>. Each scheduler
+     * that donates priority keeps one per thread and updates it whenever it
+     * recomputes the thread's effective priority.
+     */
+    public static class Donation {
+	/**
+	 * Record the thread's newly computed effective priority.
+	 *
+	 * @param	effective	the thread's effective priority.
+	 * @param	own		the thread's own priority.
+	 */
+	public void update(long effective, long own) {
+	    long time = Machine.timer().getTime();
+	    if (effective > own) {
+		if (since < 0)
+		    since = time;
+	    }
+	    else if (since >= 0) {
+		donatedTicks += time - since;
+		since = -1;
+	    }
+	}
+
+	private long since = -1;
+    }
+
+    /**
+     * A histogram of durations in ticks, with one bucket per power of two.
+     */
+    public static class Histogram {
+	/**
+	 * Add a sample to this histogram.
+	 *
+	 * @param	ticks	the duration to add.
+	 */
+	public void add(long ticks) {
+	    int bucket = 0;
+	    while (bucket < buckets.length-1 && (1L << bucket) <= ticks)
+		bucket++;
+
+	    buckets[bucket]++;
+	    count++;
+	    total += ticks;
+	    if (ticks > max)
+		max = ticks;
+	}
+
+	/**
+	 * Return the number of samples added so far.
+	 *
+	 * @return	the number of samples.
+	 */
+	public long getCount() {
+	    return count;
+	}
+
+	/**
+	 * Return an upper bound of the specified percentile.
+	 *
+	 * @param	percent	the percentile, between 0 and 100.
+	 * @return	the upper bound of the bucket the percentile falls in.
+	 */
+	public long getPercentile(int percent) {
+	    long rank = (count*percent + 99) / 100;
+	    long seen = 0;
+	    for (int i=0; i<buckets.length; i++) {
+		seen += buckets[i];
+		if (seen >= rank && seen > 0)
+		    return Math.min(max, (1L << i) - 1);
+	    }
+	    return max;
+	}
+
+	/**
+	 * Return the sum of the samples added so far.
+	 *
+	 * @return	the total number of ticks.
+	 */
+	public long getTotal() {
+	    return total;
+	}
+
+	/**
+	 * Print a summary line and the non-empty buckets of this histogram,
+	 * unless it is empty.
+	 *
+	 * @param	name	the name to print the histogram under.
+	 */
+	public void print(String name) {
+	    print("", name);
+	}
+
+	/**
+	 * Print this histogram like <tt>print(name)</tt>, with every line
+	 * indented by <i>indent</i>.
+	 *
+	 * @param	indent	the text to start each line with.
+	 * @param	name	the name to print the histogram under.
+	 */
+	public void print(String indent, String name) {
+	    if (count == 0)
+		return;
+
+	    System.out.println(indent + name + ": count " + count
+			       + ", mean " + (total/count)
+			       + ", p50 " + getPercentile(50)
+			       + ", p99 " + getPercentile(99)
+			       + ", max " + max);
+
+	    StringBuffer line = new StringBuffer(indent + " ");
+	    for (int i=0; i<buckets.length; i++) {
+		if (buckets[i] != 0)
+		    line.append(" <" + (1L << i) + ":" + buckets[i]);
+	    }
+	    System.out.println(line);
+	}
+
+	private long[] buckets = new long[40];
+	private long count = 0, total = 0, max = 0;
+    }
+
+    /** Ticks from <tt>KThread.ready()</tt> until the thread runs. */
+    public static Histogram readyLatency = new Histogram();
+    /**
+     * Ticks a thread spent blocked in <tt>Lock.acquire()</tt>, over all
+     * locks. <tt>LockProfiler</tt> breaks this down by lock.
+     */
+    public static Histogram lockWait = new Histogram();
+    /** Ticks threads spent with an effective priority above their own. */
+    public static long donatedTicks = 0;
+    /** The number of lock waits counted as priority inversions. */
+    public static int inversions = 0;
+
+    /** Ticks from pressing a hall button until entering an elevator. */
+    public static Histogram elevatorWait = new Histogram();
+    /** Ticks from pressing a hall button until getting off at the stop. */
+    public static Histogram elevatorTrip = new Histogram();
+    /** The number of elevator riders that have made all their stops. */
+    public static long elevatorRiders = 0;
+    private static long elevatorFirst = 0, elevatorLast = 0;
+
+    /** The number of jobs of periodic threads that have completed. */
+    public static int periodicJobs = 0;
+    /** The number of those jobs that completed after their deadline. */
+    public static int deadlineMisses = 0;
+
+    private static long inversionThreshold = -1;
+}
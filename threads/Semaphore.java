@@ -2,6 +2,8 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.HashMap;
+
 /**
  * A <tt>Semaphore</tt> is a synchronization primitive with an unsigned value.
  * A semaphore has only two operations:
@@ -14,6 +16,12 @@ import nachos.machine.*;
  * </ul>
  *
  * <p>
+ * <tt>P(n)</tt> and <tt>V(n)</tt> take and return <i>n</i> units at once.
+ * Waiting threads are served in the order their queue chooses them: a thread
+ * that needs more than is available holds up the threads behind it, so a
+ * large request is not starved by a stream of small ones.
+ *
+ * <p>
  * Note that this API does not allow a thread to read the value of the
  * semaphore directly. Even if you did read the value, the only thing you would
  * know is what the value used to be. You don't know what the value is now,
@@ -28,24 +36,103 @@ public class Semaphore {
      * @param	initialValue	the initial value of this semaphore.
      */
     public Semaphore(int initialValue) {
+	this(initialValue, false);
+    }
+
+    /**
+     * Allocate a new semaphore that may track its owner. If
+     * <i>transferPriority</i> is <tt>true</tt>, the thread that most recently
+     * decremented the semaphore is its owner, and threads waiting in
+     * <tt>P()</tt> donate priority to it, including a thread at the head of
+     * the queue whose request is only partly met. Until some thread has
+     * decremented the semaphore, they donate to the last thread that called
+     * <tt>V()</tt>. This suits a semaphore that guards a resource, such as one
+     * used as a mutex.
+     *
+     * @param	initialValue	the initial value of this semaphore.
+     * @param	transferPriority	<tt>true</tt> if waiting threads should
+     *					donate priority to the owner.
+     */
+    public Semaphore(int initialValue, boolean transferPriority) {
 	value = initialValue;
+	waitQueue = ThreadedKernel.scheduler.newThreadQueue(transferPriority);
+	if (transferPriority)
+	    headQueue = ThreadedKernel.scheduler.newThreadQueue(true);
+	this.transferPriority = transferPriority;
     }
 
     /**
      * Atomically wait for this semaphore to become non-zero and decrement it.
      */
     public void P() {
+	P(1);
+    }
+
+    /**
+     * Atomically wait for this semaphore's value to be at least <i>n</i> and
+     * subtract <i>n</i> from it.
+     *
+     * @param	n	the amount to subtract, at least 1.
+     */
+    public void P(int n) {
+	Lib.assertTrue(n > 0);
+
 	boolean intStatus = Machine.interrupt().disable();
 
-	if (value == 0) {
-	    waitQueue.waitForAccess(KThread.currentThread());
-	    KThread.sleep();
+	if (blocked == null && value >= n) {
+	    value -= n;
+	    if (transferPriority)
+		own(KThread.currentThread());
 	}
 	else {
+	    long waitStart = Machine.timer().getTime();
+	    KThread thread = KThread.currentThread();
+	    if (n > 1)
+		needs.put(thread, n);
+	    waitQueue.waitForAccess(thread);
+	    KThread.sleep();
+
+	    if (profile != null)
+		profile.waited(Machine.timer().getTime() - waitStart);
+	}
+	if (profile != null)
+	    profile.acquired();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically wait for this semaphore to become non-zero and decrement it,
+     * giving up after <i>ticks</i> clock ticks.
+     *
+     * @param	ticks	the maximum number of clock ticks to wait.
+     * @return	<tt>true</tt> if the semaphore was decremented, or
+     *		<tt>false</tt> if the wait timed out.
+     */
+    public boolean tryP(long ticks) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	boolean decremented = true;
+	if (blocked == null && value > 0) {
 	    value--;
+	    if (transferPriority)
+		own(KThread.currentThread());
+	}
+	else if (ticks > 0) {
+	    long waitStart = Machine.timer().getTime();
+	    decremented = ThreadedKernel.alarm.waitOn(waitQueue, ticks);
+
+	    if (profile != null)
+		profile.waited(Machine.timer().getTime() - waitStart);
 	}
+	else {
+	    decremented = false;
+	}
+	if (profile != null && decremented)
+	    profile.acquired();
 
 	Machine.interrupt().restore(intStatus);
+	return decremented;
     }
 
     /**
@@ -53,19 +140,65 @@ public class Semaphore {
      * sleeping on this semaphore.
      */
     public void V() {
+	V(1);
+    }
+
+    /**
+     * Atomically add <i>n</i> to this semaphore and wake up the threads
+     * waiting in <tt>P()</tt> whose requests can now be met, in order.
+     *
+     * @param	n	the amount to add, at least 1.
+     */
+    public void V(int n) {
+	Lib.assertTrue(n > 0);
+
 	boolean intStatus = Machine.interrupt().disable();
 
-	KThread thread = waitQueue.nextThread();
-	if (thread != null) {
-	    thread.ready();
-	}
-	else {
-	    value++;
+	value += n;
+	while (value > 0) {
+	    if (blocked == null) {
+		if ((blocked = waitQueue.nextThread()) == null)
+		    break;
+	    }
+	    else if (transferPriority) {
+		headQueue.remove(blocked);
+	    }
+
+	    Integer need = needs.get(blocked);
+	    int amount = (need == null) ? 1 : need;
+	    if (amount > value) {
+		// it stays asleep at the head, still donating to the owner
+		if (transferPriority)
+		    headQueue.waitForAccess(blocked);
+		break;
+	    }
+
+	    value -= amount;
+	    if (need != null)
+		needs.remove(blocked);
+	    if (transferPriority)
+		owner = blocked;
+	    blocked.ready();
+	    blocked = null;
 	}
+
+	// nextThread() made the last thread it returned the holder, even if
+	// that thread is still asleep
+	if (transferPriority)
+	    own(owner != null ? owner : KThread.currentThread());
 	
 	Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Make <i>thread</i> the thread that waiting threads donate priority to.
+     */
+    private void own(KThread thread) {
+	owner = thread;
+	waitQueue.setHolder(thread);
+	headQueue.setHolder(thread);
+    }
+
     private static class PingTest implements Runnable {
 	PingTest(Semaphore ping, Semaphore pong) {
 	    this.ping = ping;
@@ -96,9 +229,176 @@ public class Semaphore {
 	    ping.V();
 	    pong.P();
 	}
+
+	// a large request at the head of the queue holds up smaller ones
+	final Semaphore units = new Semaphore(0);
+	final StringBuffer order = new StringBuffer();
+
+	KThread big = new KThread(new Runnable() {
+		public void run() {
+		    order.append('<');
+		    units.P(3);
+		    order.append('b');
+		}
+	    }).setName("big");
+	big.fork();
+	while (order.length() < 1)
+	    KThread.yield();
+	units.V(2);
+
+	KThread small = new KThread(new Runnable() {
+		public void run() {
+		    order.append('<');
+		    units.P();
+		    order.append('s');
+		}
+	    }).setName("small");
+	small.fork();
+	while (order.length() < 2)
+	    KThread.yield();
+	for (int i=0; i<10; i++)
+	    KThread.yield();
+	Lib.assertTrue(order.toString().equals("<<"));
+
+	units.V();
+	big.join();
+	Lib.assertTrue(order.toString().equals("<<b"));
+	Lib.assertTrue(!units.tryP(0));
+
+	units.V(2);
+	small.join();
+	Lib.assertTrue(order.toString().equals("<<bs"));
+	units.P();
+	Lib.assertTrue(!units.tryP(0));
+
+	donationTest();
+	timeoutTest();
+    }
+
+    /**
+     * Check that <tt>tryP()</tt> gives up at its deadline, and that a
+     * <tt>V()</tt> in the same timer interrupt as the deadline wins.
+     */
+    private static void timeoutTest() {
+	final Semaphore sem = new Semaphore(0);
+
+	// nobody calls V(): the wait times out, and a later V() is kept
+	long start = Machine.timer().getTime();
+	Lib.assertTrue(!sem.tryP(1000));
+	long waited = Machine.timer().getTime() - start;
+	Lib.assertTrue(waited >= 1000 && waited < 1000 + 2*Stats.TimerTicks);
+	sem.V();
+	Lib.assertTrue(sem.tryP(0));
+
+	// V() is called from a timeout scheduled before, and due no later
+	// than, the waiter's own; the waiter is woken once, by V()
+	ThreadedKernel.alarm.schedule(1000, new Runnable() {
+		public void run() { sem.V(); }
+	    });
+	Lib.assertTrue(sem.tryP(1000));
+	Lib.assertTrue(!sem.tryP(0));
+
+	// V() from another thread well before the deadline
+	new KThread(new Runnable() {
+		public void run() {
+		    ThreadedKernel.alarm.waitUntil(500);
+		    sem.V();
+		}
+	    }).setName("V").fork();
+	start = Machine.timer().getTime();
+	Lib.assertTrue(sem.tryP(100000));
+	Lib.assertTrue(Machine.timer().getTime() - start < 100000);
+    }
+
+    /**
+     * Check that waiting threads donate priority to the owner of a semaphore,
+     * even while a partly met request is held up at the head of the queue.
+     */
+    private static void donationTest() {
+	final Semaphore units = new Semaphore(1, true);
+	final Semaphore hold = new Semaphore(0);
+	final int[] started = { 0 };
+	boolean donation = (ThreadedKernel.scheduler instanceof PriorityScheduler);
+
+	final KThread low = new KThread(new Runnable() {
+		public void run() {
+		    units.P();
+		    started[0]++;
+		    hold.P();
+		    units.V(3);
+		}
+	    }).setName("low");
+	KThread big = new KThread(new Runnable() {
+		public void run() {
+		    started[0]++;
+		    units.P(3);
+		    units.V(3);
+		}
+	    }).setName("big");
+	KThread high = new KThread(new Runnable() {
+		public void run() {
+		    started[0]++;
+		    units.P();
+		    units.V();
+		}
+	    }).setName("high");
+
+	boolean intStatus = Machine.interrupt().disable();
+	if (donation) {
+	    ThreadedKernel.scheduler.setPriority(big, 4);
+	    ThreadedKernel.scheduler.setPriority(high, 6);
+	}
+	Machine.interrupt().restore(intStatus);
+
+	low.fork();
+	while (started[0] < 1)
+	    KThread.yield();
+	big.fork();
+	while (started[0] < 2)
+	    KThread.yield();
+	for (int i=0; i<10; i++)
+	    KThread.yield();
+
+	// big now heads the queue with one of the three units it needs
+	units.V();
+	high.fork();
+	while (started[0] < 3)
+	    KThread.yield();
+	for (int i=0; i<10; i++)
+	    KThread.yield();
+
+	// both waiting threads donate to low, which will call V(), and not to
+	// big, which is still asleep
+	if (donation) {
+	    intStatus = Machine.interrupt().disable();
+	    Lib.assertTrue(ThreadedKernel.scheduler.getEffectivePriority(low)
+			   >= 6);
+	    Lib.assertTrue(ThreadedKernel.scheduler.getEffectivePriority(big)
+			   == ThreadedKernel.scheduler.getPriority(big));
+	    Machine.interrupt().restore(intStatus);
+	}
+
+	hold.V();
+	low.join();
+	big.join();
+	high.join();
+	units.P(4);
+	Lib.assertTrue(!units.tryP(0));
     }
 
     private int value;
-    private ThreadQueue waitQueue =
-	ThreadedKernel.scheduler.newThreadQueue(false);
+    /** The first waiting thread, if its request could not be met yet. */
+    private KThread blocked = null;
+    /** The amounts waiting threads need, for those that need more than 1. */
+    private HashMap<KThread, Integer> needs = new HashMap<KThread, Integer>();
+    /** The thread that most recently decremented this semaphore. */
+    private KThread owner = null;
+    /**
+     * The queue <tt>blocked</tt> waits on to keep donating to the owner, if
+     * this semaphore transfers priority.
+     */
+    private ThreadQueue headQueue = null;
+    private LockProfiler.Site profile = LockProfiler.site("Semaphore");
+    private boolean transferPriority;
+    private ThreadQueue waitQueue;
 }
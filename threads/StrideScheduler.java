@@ -0,0 +1,412 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.*;
+
+/**
+ * A scheduler that chooses threads using stride scheduling.
+ *
+ * <p>
+ * Like a lottery scheduler, a stride scheduler associates a number of tickets
+ * with each thread, and each thread receives a share of the resource that is
+ * proportional to its tickets. Instead of holding a random lottery, every
+ * thread has a <i>stride</i>, inversely proportional to its tickets, and a
+ * <i>pass</i>, which advances by the stride each time the thread is chosen.
+ * The waiting thread with the lowest pass is always dequeued next, so the
+ * allocation is deterministic and never drifts more than one quantum away
+ * from the ideal share.
+ *
+ * <p>
+ * Only the ready queue, which is allocated through <tt>newReadyQueue()</tt>,
+ * advances passes. Every other queue orders its waiters by a key of its own,
+ * its current pass plus the waiter's stride on arrival, so that waiters with
+ * more tickets get through sooner and waiters with equal tickets get through
+ * in order, while waiting for a lock or a join costs a thread none of its
+ * share of the processor.
+ *
+ * <p>
+ * A stride scheduler must partially solve the priority inversion problem in
+ * the same way as a lottery scheduler: tickets are transferred through locks
+ * and through joins, and they add up. Donated tickets shorten a thread's
+ * stride, which moves it forward in the queues it waits on, but the ready
+ * queue always advances a thread's pass by the stride of its own tickets, so
+ * that a lock holder runs sooner without taking its donors' share.
+ */
+public class StrideScheduler extends PriorityScheduler {
+    /**
+     * Allocate a new stride scheduler.
+     */
+    public StrideScheduler() {
+    }
+
+    /**
+     * Allocate a new stride thread queue.
+     *
+     * @param	transferPriority	<tt>true</tt> if this queue should
+     *					transfer tickets from waiting threads
+     *					to the owning thread.
+     * @return	a new stride thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new StrideQueue(transferPriority, false);
+    }
+
+    /**
+     * Allocate the ready queue, the only queue that advances the pass of the
+     * threads it chooses.
+     *
+     * @return	the new ready queue.
+     */
+    public ThreadQueue newReadyQueue() {
+	Lib.assertTrue(readyQueue == null);
+
+	readyQueue = new StrideQueue(false, true);
+	return readyQueue;
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getStrideThreadState(thread).getPriority();
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getStrideThreadState(thread).getEffectivePriority();
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= priorityMinimum &&
+		   priority <= priorityMaximum);
+
+	getStrideThreadState(thread).setPriority(priority);
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+        boolean ret = true;
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMaximum)
+	    ret = false;
+        else
+            setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return ret;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+        boolean ret = true;
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMinimum)
+            ret = false;
+        else
+            setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return ret;
+    }
+
+    /**
+     * The default priority for a new thread. Do not change this value.
+     */
+    public static final int priorityDefault = 1;
+    /**
+     * The minimum priority that a thread can have. Do not change this value.
+     */
+    public static final int priorityMinimum = 1;
+    /**
+     * The maximum priority that a thread can have. Do not change this value.
+     */
+    public static final int priorityMaximum = Integer.MAX_VALUE;
+
+    /**
+     * The stride of a thread holding a single ticket. The stride of any other
+     * thread is this value divided by its effective number of tickets.
+     */
+    public static final long strideOne = 1L << 36;
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected StrideThreadState getStrideThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new StrideThreadState(thread);
+
+	return (StrideThreadState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that keeps its threads in a heap ordered by
+     * pass, or by the key they were given on arrival if it is not the ready
+     * queue.
+     */
+    protected class StrideQueue extends ThreadQueue {
+
+		public java.util.PriorityQueue<StrideThreadState> passQueue;
+
+	StrideQueue(boolean transferPriority, boolean processorQueue) {
+	    this.transferPriority = transferPriority;
+	    this.processorQueue = processorQueue;
+		Comparator<StrideThreadState> cmp=(StrideThreadState s1, StrideThreadState s2)->{
+			if(s1.key!=s2.key) return s1.key<s2.key?-1:1;
+			if(s1.startTime!=s2.startTime) return s1.startTime<s2.startTime?-1:1;
+			return s1.index-s2.index;
+		};
+		this.passQueue=new java.util.PriorityQueue<>(cmp);
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    getStrideThreadState(thread).waitForAccess(this);
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    getStrideThreadState(thread).acquire(this);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+		StrideThreadState next=passQueue.poll();
+		if(next==null) return null;
+		totalTickets-=next.getEffectivePriority();
+		//The queue's virtual time follows the key of the chosen thread.
+		queuePass=next.key;
+		if(processorQueue) next.pass+=strideOne/next.getPriority();
+		next.acquire(this);
+	    return next.thread;
+	}
+
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+		StrideThreadState state=getStrideThreadState(thread);
+		if(!passQueue.remove(state)) return false;
+		totalTickets-=state.getEffectivePriority();
+		if(state.waiting==this) state.waiting=null;
+		if(worker!=null) worker.updatePriority(new HashSet<Integer>());
+	    return true;
+	}
+
+	/**
+	 * Return the next thread that <tt>nextThread()</tt> would return,
+	 * without modifying the state of this queue.
+	 *
+	 * @return	the next thread that <tt>nextThread()</tt> would
+	 *		return.
+	 */
+	protected StrideThreadState pickNextThread() {
+	    return passQueue.peek();
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+		for(StrideThreadState s: passQueue){
+			System.out.print(s.thread+":"+s.getEffectivePriority()+"@"+s.key+" ");
+		}
+		if(worker!=null) System.out.print("(held by "+worker.thread+")");
+	}
+
+	/**
+	 * <tt>true</tt> if this queue should transfer tickets from waiting
+	 * threads to the owning thread.
+	 */
+	public boolean transferPriority;
+	/**
+	 * <tt>true</tt> if this is the ready queue, whose keys are the passes
+	 * of its threads.
+	 */
+	public boolean processorQueue;
+	public StrideThreadState worker=null;
+	/** The sum of the effective tickets of all waiting threads. */
+	public long totalTickets=0;
+	/** The pass of the thread most recently chosen from this queue. */
+	public long queuePass=0;
+    }
+
+    /**
+     * The scheduling state of a thread. This should include the thread's
+     * tickets, its effective tickets, its pass, any objects it owns, and the
+     * queue it's waiting for, if any.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class StrideThreadState {
+	/**
+	 * Allocate a new <tt>StrideThreadState</tt> object and associate it
+	 * with the specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public StrideThreadState(KThread thread) {
+	    this.thread = thread;
+	    index=maxIndex++;
+
+	    setPriority(priorityDefault);
+	}
+
+	/**
+	 * Return the priority of the associated thread.
+	 *
+	 * @return	the priority of the associated thread.
+	 */
+	public int getPriority() {
+	    return priority;
+	}
+
+	/**
+	 * Return the effective priority of the associated thread.
+	 *
+	 * @return	the effective priority of the associated thread.
+	 */
+	public int getEffectivePriority() {
+	    return effectivePriority;
+	}
+
+	/**
+	 * Return the stride of the associated thread's effective tickets,
+	 * which sets its place in the queues it waits on.
+	 *
+	 * @return	the stride of the associated thread.
+	 */
+	public long getStride() {
+	    return strideOne/effectivePriority;
+	}
+
+	/**
+	 * Set the priority of the associated thread to the specified value.
+	 *
+	 * @param	priority	the new priority.
+	 */
+	public void setPriority(int priority) {
+	    if (this.priority == priority)
+		return;
+
+	    this.priority = priority;
+	    this.updatePriority(new HashSet<Integer>());
+	}
+
+	/**
+	 * Called when <tt>waitForAccess(thread)</tt> (where <tt>thread</tt> is
+	 * the associated thread) is invoked on the specified stride queue.
+	 * On the ready queue, a thread that has been away for a while is moved
+	 * up to the queue's current pass, so that it cannot claim the time it
+	 * missed. On any other queue the thread's pass is left alone, and it
+	 * waits one stride behind the queue's current pass.
+	 *
+	 * @param	waitQueue	the queue that the associated thread is
+	 *				now waiting on.
+	 *
+	 * @see	nachos.threads.ThreadQueue#waitForAccess
+	 */
+	public void waitForAccess(StrideQueue waitQueue) {
+		this.waiting=waitQueue;
+		this.startTime=Machine.timer().getTime();
+		if(waitQueue.processorQueue){
+			if(pass<waitQueue.queuePass) pass=waitQueue.queuePass;
+			key=pass;
+		}
+		else{
+			key=waitQueue.queuePass+getStride();
+		}
+		waitQueue.passQueue.add(this);
+		waitQueue.totalTickets+=getEffectivePriority();
+		if(waitQueue.worker!=null){
+			waitQueue.worker.updatePriority(new HashSet<>());
+
+		}
+	}
+	public void updatePriority(HashSet<Integer> mask){
+		if(mask.contains(this.index)){
+			return;
+		}
+		long ep=priority;
+		for(StrideQueue sq: working){
+			if(!sq.transferPriority) continue;
+			ep+=sq.totalTickets;
+		}
+		if(ep>priorityMaximum) ep=priorityMaximum;
+		donation.update(ep, priority);
+		if(ep!=getEffectivePriority()){
+			int old=effectivePriority;
+			if(waiting!=null){
+				waiting.passQueue.remove(this);
+				waiting.totalTickets-=old;
+				//Scale the remaining key to the new stride.
+				long remain=key-waiting.queuePass;
+				if(remain>0 && old>0)
+					key=waiting.queuePass+(long)((double)remain*old/ep);
+				if(waiting.processorQueue) pass=key;
+			}
+			effectivePriority=(int)ep;
+			if(waiting!=null){
+				waiting.passQueue.add(this);
+				waiting.totalTickets+=effectivePriority;
+				if(waiting.worker!=null){
+					HashSet<Integer> newmask=new HashSet<>();
+					newmask.addAll(mask);
+					newmask.add(index);
+					waiting.worker.updatePriority(newmask);
+				}
+			}
+		}
+
+
+	}
+	/**
+	 * Called when the associated thread has acquired access to whatever is
+	 * guarded by <tt>waitQueue</tt>. This can occur either as a result of
+	 * <tt>acquire(thread)</tt> being invoked on <tt>waitQueue</tt> (where
+	 * <tt>thread</tt> is the associated thread), or as a result of
+	 * <tt>nextThread()</tt> being invoked on <tt>waitQueue</tt>.
+	 *
+	 * @see	nachos.threads.ThreadQueue#acquire
+	 * @see	nachos.threads.ThreadQueue#nextThread
+	 */
+	public void acquire(StrideQueue waitQueue) {
+		if(this.waiting==waitQueue) this.waiting=null;
+		if(waitQueue.worker!=null){
+			StrideThreadState worker=waitQueue.worker;
+			waitQueue.worker=null;
+			worker.working.remove(waitQueue);
+			worker.updatePriority(new HashSet<Integer>());
+
+		}
+		waitQueue.worker=this;
+		this.working.add(waitQueue);
+		updatePriority(new HashSet<Integer>());
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The priority of the associated thread. */
+	protected int priority;
+	protected int effectivePriority;
+	/** The pass of the associated thread. */
+	public long pass=0;
+	/** The position of the associated thread in the queue it waits on. */
+	public long key=0;
+	public long startTime;
+	public int index;
+	private SchedulingStats.Donation donation=new SchedulingStats.Donation();
+
+	protected ArrayList<StrideQueue> working=new ArrayList<>();
+	protected StrideQueue waiting=null;
+    }
+
+    private StrideQueue readyQueue = null;
+}
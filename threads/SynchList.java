@@ -1,25 +1,43 @@
 package nachos.threads;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collection;
 import nachos.machine.*;
 import nachos.threads.*;
 
 /**
- * A synchronized queue.
+ * A synchronized queue, kept in a circular array. The queue is either
+ * unbounded, growing its array as needed, or bounded, in which case
+ * <tt>add()</tt> blocks while the queue is full.
  */
 public class SynchList {
     /**
-     * Allocate a new synchronized queue.
+     * Allocate a new unbounded synchronized queue.
      */
     public SynchList() {
-	list = new LinkedList<Object>();
+	this(0);
+    }
+
+    /**
+     * Allocate a new synchronized queue.
+     *
+     * @param	capacity	the maximum number of elements in the queue, or
+     *				0 for an unbounded queue.
+     */
+    public SynchList(int capacity) {
+	Lib.assertTrue(capacity >= 0);
+
+	this.capacity = capacity;
+	items = new Object[capacity > 0 ? capacity : initialSize];
 	lock = new Lock();
-	listEmpty = new Condition(lock);
+	listEmpty = new Condition2(lock);
+	listFull = new Condition2(lock);
     }
 
     /**
-     * Add the specified object to the end of the queue. If another thread is
-     * waiting in <tt>removeFirst()</tt>, it is woken up.
+     * Add the specified object to the end of the queue, blocking while a
+     * bounded queue is full. If another thread is waiting in
+     * <tt>removeFirst()</tt> or <tt>drainTo()</tt>, it is woken up.
      *
      * @param	o	the object to add. Must not be <tt>null</tt>.
      */
@@ -27,7 +45,15 @@ public class SynchList {
 	Lib.assertTrue(o != null);
 	
 	lock.acquire();
-	list.add(o);
+	if (capacity > 0) {
+	    while (count == capacity)
+		listFull.sleep();
+	}
+	else if (count == items.length) {
+	    grow();
+	}
+	items[(head + count) % items.length] = o;
+	count++;
 	listEmpty.wake();
 	lock.release();
     }
@@ -42,14 +68,64 @@ public class SynchList {
 	Object o;
 
 	lock.acquire();
-	while (list.isEmpty())
+	while (count == 0)
+	    listEmpty.sleep();
+	o = take();
+	if (capacity > 0)
+	    listFull.wake();
+	lock.release();
+
+	return o;
+    }
+
+    /**
+     * Remove up to <i>max</i> objects from the front of the queue and add
+     * them, in order, to <i>c</i>, blocking until the queue is non-empty if
+     * necessary.
+     *
+     * @param	c	the collection to add the removed objects to.
+     * @param	max	the maximum number of objects to remove, at least 1.
+     * @return	the number of objects removed.
+     */
+    public int drainTo(Collection<Object> c, int max) {
+	Lib.assertTrue(max > 0);
+
+	lock.acquire();
+	while (count == 0)
 	    listEmpty.sleep();
-	o = list.removeFirst();
+
+	int n = Math.min(max, count);
+	for (int i=0; i<n; i++)
+	    c.add(take());
+
+	if (capacity > 0) {
+	    for (int i=0; i<n; i++)
+		listFull.wake();
+	}
+	// leave the rest to the next waiting consumer
+	if (count > 0)
+	    listEmpty.wake();
 	lock.release();
 
+	return n;
+    }
+
+    private Object take() {
+	Object o = items[head];
+	items[head] = null;
+	head = (head + 1) % items.length;
+	count--;
 	return o;
     }
 
+    private void grow() {
+	Object[] larger = new Object[items.length * 2];
+	for (int i=0; i<count; i++)
+	    larger[i] = items[(head + i) % items.length];
+	items = larger;
+	head = 0;
+    }
+
     private static class PingTest implements Runnable {
 	PingTest(SynchList ping, SynchList pong) {
 	    this.ping = ping;
@@ -79,10 +155,46 @@ public class SynchList {
 	    ping.add(o);
 	    Lib.assertTrue(pong.removeFirst() == o);
 	}
+
+	// a producer blocks on a full bounded list until elements are drained
+	final SynchList bounded = new SynchList(2);
+	final int[] added = { 0 };
+
+	KThread producer = new KThread(new Runnable() {
+		public void run() {
+		    for (int i=0; i<5; i++) {
+			bounded.add(new Integer(i));
+			added[0]++;
+		    }
+		}
+	    }).setName("producer");
+	producer.fork();
+
+	ArrayList<Object> drained = new ArrayList<Object>();
+	while (added[0] < 2)
+	    KThread.yield();
+	for (int i=0; i<10; i++)
+	    KThread.yield();
+	Lib.assertTrue(added[0] == 2);
+	Lib.assertTrue(bounded.drainTo(drained, 10) == 2);
+
+	while (added[0] < 4)
+	    KThread.yield();
+	Lib.assertTrue(bounded.drainTo(drained, 1) == 1);
+
+	producer.join();
+	Lib.assertTrue(bounded.drainTo(drained, 10) == 2);
+	for (int i=0; i<5; i++)
+	    Lib.assertTrue(((Integer) drained.get(i)).intValue() == i);
     }
 
-    private LinkedList<Object> list;
+    private static final int initialSize = 16;
+
+    private int capacity;
+    private Object[] items;
+    private int head = 0, count = 0;
     private Lock lock;
-    private Condition listEmpty;
+    private Condition2 listEmpty;
+    private Condition2 listFull;
 }
 
@@ -91,6 +91,34 @@ public abstract class ThreadQueue {
      */
     public abstract void acquire(KThread thread);
 
+    /**
+     * Make the specified thread the one that waiting threads donate priority
+     * to, if this queue transfers priority, even while threads are waiting.
+     * Unlike <tt>acquire()</tt>, this may be called at any time; it is used
+     * when the thread that will next give access is known, e.g. the thread
+     * expected to signal a condition variable.
+     *
+     * <p>
+     * By default this calls <tt>acquire()</tt>. Queues whose
+     * <tt>acquire()</tt> requires the queue to be empty must override it.
+     *
+     * @param	thread	the thread that now holds this queue.
+     */
+    public void setHolder(KThread thread) {
+	acquire(thread);
+    }
+
+    /**
+     * Remove the specified thread from this queue, if it is waiting for
+     * access, without giving it access. This is used when a thread gives up
+     * waiting, e.g. when a timed wait expires. Any priority the thread was
+     * donating through this queue is withdrawn.
+     *
+     * @param	thread	the thread to remove.
+     * @return	<tt>true</tt> if the thread was waiting on this queue.
+     */
+    public abstract boolean remove(KThread thread);
+
     /**
      * Print out all the threads waiting for access, in no particular order.
      */
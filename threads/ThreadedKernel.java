@@ -47,10 +47,17 @@ public class ThreadedKernel extends Kernel {
      */	
     public void selfTest() {
 	KThread.selfTest();
+	Alarm.selfTest();
 	Semaphore.selfTest();
+	Lock.selfTest();
+	Condition2.selfTest();
+	ReadWriteLock.selfTest();
 	SynchList.selfTest();
+	Channel.selfTest();
+	KExecutor.selfTest();
 	if (Machine.bank() != null) {
 	    ElevatorBank.selfTest();
+	    ElevatorController.selfTest();
 	}
     }
     
@@ -130,9 +137,11 @@ public class ThreadedKernel extends Kernel {
     }
 
     /**
-     * Terminate this kernel. Never returns.
+     * Terminate this kernel. Prints the scheduling statistics collected by the
+     * kernel, then halts the machine. Never returns.
      */
     public void terminate() {
+	SchedulingStats.print();
 	Machine.halt();
     }
 
@@ -151,4 +160,9 @@ public class ThreadedKernel extends Kernel {
     private static Communicator dummy5 = null;
     private static Rider dummy6 = null;
     private static ElevatorController dummy7 = null;
+    private static StrideScheduler dummy8 = null;
+    private static MultilevelFeedbackScheduler dummy9 = null;
+    private static FairScheduler dummy10 = null;
+    private static DeadlineScheduler dummy11 = null;
+    private static ReadWriteLock dummy12 = null;
 }
@@ -0,0 +1,180 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A kernel-wide cache of physical frames that several processes can map at
+ * once. Each cached frame holds one page of some named object, such as a
+ * file, and counts the processes using it. The first <tt>acquire()</tt> of a
+ * page allocates a frame and fills it using a <tt>Loader</tt>; later ones
+ * share that frame. When the last reference is released, the frame goes back
+ * to <tt>UserKernel.memoryPages</tt>.
+ */
+public class PageCache {
+    /**
+     * Allocate a new, empty page cache.
+     */
+    public PageCache() {
+    }
+
+    /**
+     * Fills a newly allocated frame with a page's contents.
+     */
+    public interface Loader {
+	/**
+	 * Load the specified page into the specified frame.
+	 *
+	 * @param	page	the page of the object to load.
+	 * @param	ppn	the frame to load it into.
+	 */
+	public void load(int page, int ppn);
+    }
+
+    /**
+     * Return the frame holding a page, adding a reference to it. If the page
+     * is not cached yet, allocate a frame and fill it with <i>loader</i>.
+     *
+     * @param	name	the name of the object the page belongs to.
+     * @param	page	the page within that object.
+     * @param	loader	how to load the page if it is not cached.
+     * @return	the frame holding the page, or -1 if no frame was free.
+     */
+    public int acquire(String name, int page, Loader loader) {
+	Lib.assertTrue(page >= 0);
+
+	// loads happen with the lock held, so a page is never loaded twice
+	lock.acquire();
+
+	Pages pages = cache.get(name);
+	if (pages == null) {
+	    pages = new Pages(page+1);
+	    cache.put(name, pages);
+	}
+	pages.ensureCapacity(page+1);
+
+	if (pages.references[page] == 0) {
+	    int[] ppns = UserKernel.memoryPages.malloc(1);
+	    if (ppns == null) {
+		if (pages.numCached == 0)
+		    cache.remove(name);
+		lock.release();
+		return -1;
+	    }
+	    loader.load(page, ppns[0]);
+	    pages.frames[page] = ppns[0];
+	    pages.numCached++;
+	    numFrames++;
+	}
+	pages.references[page]++;
+	int ppn = pages.frames[page];
+
+	lock.release();
+	return ppn;
+    }
+
+    /**
+     * Drop a reference to a cached page, freeing its frame if this was the
+     * last one.
+     *
+     * @param	name	the name of the object the page belongs to.
+     * @param	page	the page within that object.
+     */
+    public void release(String name, int page) {
+	lock.acquire();
+
+	Pages pages = cache.get(name);
+	Lib.assertTrue(pages != null && page < pages.references.length &&
+		       pages.references[page] > 0);
+
+	if (--pages.references[page] == 0) {
+	    UserKernel.memoryPages.free(pages.frames[page]);
+	    numFrames--;
+	    if (--pages.numCached == 0)
+		cache.remove(name);
+	}
+
+	lock.release();
+    }
+
+    /**
+     * Copy bytes between a buffer and the cached pages of an object, so that
+     * the pages stay coherent with reads and writes that bypass them. The
+     * object is taken to be a run of pages of <tt>Processor.pageSize</tt>
+     * bytes, and only the bytes in <i>pos</i> to <i>pos+length</i> that fall
+     * in cached pages are copied.
+     *
+     * @param	name	the name of the object.
+     * @param	pos	the position in the object of the first byte.
+     * @param	buf	the buffer to copy from or to.
+     * @param	offset	the offset in <i>buf</i> of the first byte.
+     * @param	length	the number of bytes.
+     * @param	toCache	<tt>true</tt> to copy from <i>buf</i> into the cached
+     *			pages, <tt>false</tt> to copy from them into
+     *			<i>buf</i>.
+     */
+    public void copy(String name, int pos, byte[] buf, int offset, int length,
+		     boolean toCache) {
+	lock.acquire();
+
+	Pages pages = cache.get(name);
+	if (pages != null) {
+	    byte[] memory = Machine.processor().getMemory();
+	    int end = pos + length;
+	    for (int page=pos/pageSize;
+		 page < pages.frames.length && page*pageSize < end; page++) {
+		if (pages.references[page] == 0)
+		    continue;
+
+		int start = Math.max(pos, page*pageSize);
+		int count = Math.min(end, (page+1)*pageSize) - start;
+		int cached = pages.frames[page]*pageSize + start - page*pageSize;
+		if (toCache)
+		    System.arraycopy(buf, offset + start-pos, memory, cached, count);
+		else
+		    System.arraycopy(memory, cached, buf, offset + start-pos, count);
+	    }
+	}
+
+	lock.release();
+    }
+
+    /**
+     * Return the number of frames currently held by the cache.
+     *
+     * @return	the number of cached frames.
+     */
+    public int getNumFrames() {
+	return numFrames;
+    }
+
+    /**
+     * The cached pages of one object, indexed by page.
+     */
+    private static class Pages {
+	Pages(int size) {
+	    frames = new int[size];
+	    references = new int[size];
+	}
+
+	void ensureCapacity(int size) {
+	    if (size > frames.length) {
+		size = Math.max(size, 2*frames.length);
+		frames = Arrays.copyOf(frames, size);
+		references = Arrays.copyOf(references, size);
+	    }
+	}
+
+	int[] frames, references;
+	int numCached = 0;
+    }
+
+    private static final int pageSize = Processor.pageSize;
+
+    private Lock lock = new Lock();
+    private HashMap<String, Pages> cache = new HashMap<String, Pages>();
+    private int numFrames = 0;
+}
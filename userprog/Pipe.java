@@ -0,0 +1,157 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * A one-way channel between processes, backed by a kernel ring buffer. A pipe
+ * has two ends, each an <tt>OpenFile</tt>: bytes written to the write end are
+ * read, in order, from the read end.
+ *
+ * <p>
+ * A read waits until the pipe holds at least one byte and returns as many as
+ * are available, or returns 0 once the write end is closed and the pipe is
+ * empty. A write waits for room until it has written all of its bytes, and
+ * fails once the read end is closed.
+ */
+public class Pipe {
+    /**
+     * Allocate a new pipe with the default capacity.
+     */
+    public Pipe() {
+	this(defaultCapacity);
+    }
+
+    /**
+     * Allocate a new pipe.
+     *
+     * @param	capacity	the number of bytes the pipe can hold.
+     */
+    public Pipe(int capacity) {
+	Lib.assertTrue(capacity > 0);
+
+	buffer = new byte[capacity];
+    }
+
+    /**
+     * Return the end of this pipe that can be read from.
+     *
+     * @return	the read end.
+     */
+    public OpenFile getReadEnd() {
+	return readEnd;
+    }
+
+    /**
+     * Return the end of this pipe that can be written to.
+     *
+     * @return	the write end.
+     */
+    public OpenFile getWriteEnd() {
+	return writeEnd;
+    }
+
+    private int read(byte[] buf, int offset, int length) {
+	lock.acquire();
+
+	while (count == 0 && writerOpen && length > 0)
+	    dataAvailable.sleep();
+
+	int amount = Math.min(length, count);
+	int first = Math.min(amount, buffer.length - head);
+	System.arraycopy(buffer, head, buf, offset, first);
+	System.arraycopy(buffer, 0, buf, offset+first, amount-first);
+	head = (head + amount) % buffer.length;
+	count -= amount;
+
+	if (amount > 0)
+	    spaceAvailable.wakeAll();
+
+	lock.release();
+	return amount;
+    }
+
+    private int write(byte[] buf, int offset, int length) {
+	lock.acquire();
+
+	int written = 0;
+	while (written < length && readerOpen) {
+	    if (count == buffer.length) {
+		spaceAvailable.sleep();
+		continue;
+	    }
+
+	    int tail = (head + count) % buffer.length;
+	    int amount = Math.min(length - written,
+				  Math.min(buffer.length - count,
+					   buffer.length - tail));
+	    System.arraycopy(buf, offset+written, buffer, tail, amount);
+	    count += amount;
+	    written += amount;
+
+	    dataAvailable.wakeAll();
+	}
+
+	lock.release();
+
+	if (written == 0 && length > 0)
+	    return -1;
+	return written;
+    }
+
+    private void close(boolean reading) {
+	lock.acquire();
+
+	if (reading) {
+	    readerOpen = false;
+	    spaceAvailable.wakeAll();
+	}
+	else {
+	    writerOpen = false;
+	    dataAvailable.wakeAll();
+	}
+
+	lock.release();
+    }
+
+    private static final int defaultCapacity = 4096;
+
+    private byte[] buffer;
+    private int head = 0, count = 0;
+    private boolean readerOpen = true, writerOpen = true;
+
+    private Lock lock = new Lock();
+    private Condition2 dataAvailable = new Condition2(lock);
+    private Condition2 spaceAvailable = new Condition2(lock);
+
+    private End readEnd = new End(true);
+    private End writeEnd = new End(false);
+
+    private class End extends OpenFile {
+	End(boolean reading) {
+	    super(null, "pipe");
+
+	    this.reading = reading;
+	}
+
+	public void close() {
+	    Pipe.this.close(reading);
+	}
+
+	public int read(byte[] buf, int offset, int length) {
+	    if (!reading)
+		return -1;
+
+	    return Pipe.this.read(buf, offset, length);
+	}
+
+	public int write(byte[] buf, int offset, int length) {
+	    if (reading)
+		return -1;
+
+	    return Pipe.this.write(buf, offset, length);
+	}
+
+	private boolean reading;
+    }
+}
@@ -0,0 +1,78 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+/**
+ * An <tt>OpenFile</tt> referred to by more than one file descriptor, for
+ * example after <tt>dup()</tt>. The descriptors share the file's position,
+ * and the underlying file is only closed when the last of them is closed.
+ */
+public class SharedOpenFile extends OpenFile {
+    /**
+     * Allocate a new shared file with a single reference.
+     *
+     * @param	file	the file to share.
+     */
+    public SharedOpenFile(OpenFile file) {
+	super(file.getFileSystem(), file.getName());
+
+	this.file = file;
+    }
+
+    /**
+     * Add a reference to this file.
+     *
+     * @return	this file.
+     */
+    public SharedOpenFile share() {
+	boolean intStatus = Machine.interrupt().disable();
+	references++;
+	Machine.interrupt().restore(intStatus);
+
+	return this;
+    }
+
+    /**
+     * Drop a reference to this file, closing the underlying file if it was
+     * the last one.
+     */
+    public void close() {
+	boolean intStatus = Machine.interrupt().disable();
+	boolean last = (--references == 0);
+	Machine.interrupt().restore(intStatus);
+
+	if (last)
+	    file.close();
+    }
+
+    public int read(int pos, byte[] buf, int offset, int length) {
+	return file.read(pos, buf, offset, length);
+    }
+
+    public int write(int pos, byte[] buf, int offset, int length) {
+	return file.write(pos, buf, offset, length);
+    }
+
+    public int length() {
+	return file.length();
+    }
+
+    public void seek(int pos) {
+	file.seek(pos);
+    }
+
+    public int tell() {
+	return file.tell();
+    }
+
+    public int read(byte[] buf, int offset, int length) {
+	return file.read(buf, offset, length);
+    }
+
+    public int write(byte[] buf, int offset, int length) {
+	return file.write(buf, offset, length);
+    }
+
+    private OpenFile file;
+    private int references = 1;
+}
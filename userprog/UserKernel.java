@@ -3,8 +3,7 @@ package nachos.userprog;
 import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
-import java.util.LinkedList;
-import java.util.HashSet;
+import java.util.Arrays;
 import java.util.HashMap;
 /**
  * A kernel that can support multiple user processes.
@@ -27,6 +26,7 @@ public class UserKernel extends ThreadedKernel {
 	console = new SynchConsole(Machine.console());
 	memoryPages=new MemoryPageManager(Machine.processor().getNumPhysPages());
 	pid=new PIDManager();
+	pageCache=new PageCache();
 	Machine.processor().setExceptionHandler(new Runnable() {
 		public void run() { exceptionHandler(); }
 	    });
@@ -37,6 +37,7 @@ public class UserKernel extends ThreadedKernel {
      */	
     public void selfTest() {
 	super.selfTest();
+	MemoryPageManager.selfTest();
 
 	System.out.println("Testing the console device. Typed characters");
 	System.out.println("will be echoed until q is typed.");
@@ -108,6 +109,8 @@ public class UserKernel extends ThreadedKernel {
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+	if (memoryPages != null)
+	    memoryPages.print();
 	super.terminate();
     }
 
@@ -117,99 +120,441 @@ public class UserKernel extends ThreadedKernel {
     // dummy variables to make javac smarter
     private static Coff dummy1 = null;
 	
+	/**
+	 * Allocates physical frames to processes. Each frame has one bit in a
+	 * bitmap, set while the frame is in use, so a batch of frames is
+	 * allocated or freed under a single lock hold, and contiguous runs are
+	 * found a word (64 frames) at a time.
+	 *
+	 * <p>
+	 * A frame can be shared, for example by a forked process. Each frame
+	 * counts its references: <tt>share()</tt> adds one, <tt>free()</tt>
+	 * drops one, and the frame is only free once none are left.
+	 */
 	public static class MemoryPageManager{
 		private int totalPages;
 		private int freePages;
-		private int lastPage=0;
+		private int peakUsed=0;
+		private long[] used;
+		private int[] references;
 		private Lock lock;
-		private LinkedList<Integer> recycledPages;
 		public MemoryPageManager(int physMemoryPages){
 			totalPages=freePages=physMemoryPages;
-			recycledPages=new LinkedList<Integer>();
+			used=new long[(physMemoryPages+63)/64];
+			references=new int[physMemoryPages];
+			// the bits past the last frame are never free
+			if(physMemoryPages%64!=0) used[used.length-1]=-1L<<(physMemoryPages%64);
 			lock=new Lock();
 		}
+		/**
+		 * Allocate <i>size</i> frames. The frames are contiguous if a long
+		 * enough run is free, and otherwise are the lowest free frames.
+		 *
+		 * @return	the frames, or <tt>null</tt> if too few are free.
+		 */
 		public int[] malloc(int size){
-			//System.out.println(size);
 			lock.acquire();
 			if(size>freePages){
 				lock.release();
 				return null;
 			}
-			freePages-=size;
 			int pages[]=new int[size];
-			for(int i=0;i<size;i++) pages[i]=fetchPage();
+			int first=findRun(size,1);
+			if(first!=-1){
+				for(int i=0;i<size;i++) pages[i]=first+i;
+				setRange(first,size,true);
+			}else{
+				int n=0;
+				for(int w=0;n<size;w++){
+					long free=~used[w];
+					while(free!=0 && n<size){
+						long bit=free&-free;
+						pages[n++]=w*64+Long.numberOfTrailingZeros(bit);
+						used[w]|=bit;
+						free^=bit;
+					}
+				}
+			}
+			for(int i=0;i<size;i++) references[pages[i]]=1;
+			allocated(size);
 			lock.release();
 			return pages;
 		}
-		private int fetchPage(){
-			if(recycledPages.peek()!=null) return recycledPages.poll();
-			else return lastPage++;
-			
+		/**
+		 * Allocate a run of <i>size</i> contiguous frames whose first frame
+		 * is a multiple of <i>alignment</i>.
+		 *
+		 * @return	the first frame of the run, or -1 if there is no such
+		 *		free run.
+		 */
+		public int mallocContiguous(int size, int alignment){
+			Lib.assertTrue(size>0 && alignment>0);
+			lock.acquire();
+			int first=findRun(size,alignment);
+			if(first!=-1){
+				setRange(first,size,true);
+				Arrays.fill(references,first,first+size,1);
+				allocated(size);
+			}
+			lock.release();
+			return first;
+		}
+		/**
+		 * Add a reference to a frame in use.
+		 */
+		public void share(int page){
+			lock.acquire();
+			Lib.assertTrue(page>=0 && page<totalPages && !isFree(page));
+			references[page]++;
+			lock.release();
+		}
+		/**
+		 * Return the number of references to a frame.
+		 */
+		public int getReferences(int page){
+			return references[page];
 		}
 		public void free(int page){
 			lock.acquire();
-			recycledPages.add(page);
-			freePages++;
-			if(freePages==totalPages){
-				recycledPages.clear();
-				
+			release(page);
+			lock.release();
+		}
+		/**
+		 * Free a batch of frames under one lock hold.
+		 */
+		public void free(int[] pages){
+			lock.acquire();
+			for(int i=0;i<pages.length;i++) release(pages[i]);
+			lock.release();
+		}
+		/**
+		 * Drop a reference to each frame of a run returned by
+		 * <tt>mallocContiguous()</tt>.
+		 */
+		public void freeContiguous(int first, int size){
+			lock.acquire();
+			Lib.assertTrue(lastFree(first,first+size)==-1);
+			for(int i=first;i<first+size;i++) release(i);
+			lock.release();
+		}
+		public int getTotalPages(){
+			return totalPages;
+		}
+		public int getFreePages(){
+			return freePages;
+		}
+		/**
+		 * Return the number of separate runs the free frames form; 1 (or 0)
+		 * means free memory is not fragmented at all.
+		 */
+		public int freeRuns(){
+			lock.acquire();
+			int runs=0;
+			for(int page=0;page<totalPages;page++){
+				if(isFree(page) && (page==0 || !isFree(page-1))) runs++;
+			}
+			lock.release();
+			return runs;
+		}
+		/**
+		 * Return the length of the longest run of free frames.
+		 */
+		public int largestFreeRun(){
+			lock.acquire();
+			int largest=0;
+			for(int page=0,run=0;page<totalPages;page++){
+				run=isFree(page)?run+1:0;
+				largest=Math.max(largest,run);
 			}
-			//System.out.println(freePages+" free pages left!");
 			lock.release();
+			return largest;
+		}
+		/**
+		 * Print the frame allocator's statistics.
+		 */
+		public void print(){
+			System.out.println("Physical frames: "+totalPages+" total, peak "
+				+peakUsed+" in use, "+freePages+" free in "+freeRuns()
+				+" runs (largest "+largestFreeRun()+")");
+		}
+		/**
+		 * Test aligned runs, runs that cross a word of the bitmap, shared
+		 * frames and freeing, on an allocator whose last word is partly
+		 * past the end.
+		 */
+		public static void selfTest(){
+			MemoryPageManager m=new MemoryPageManager(200);
+			Lib.assertTrue(m.mallocContiguous(10,1)==0);
+			// skipped past the used frames to the next multiple of 16
+			Lib.assertTrue(m.mallocContiguous(8,16)==16);
+			// frames 64 to 133, crossing into the third word
+			Lib.assertTrue(m.mallocContiguous(70,64)==64);
+			// the free runs are 10-15, 24-63 and 134-199
+			Lib.assertTrue(m.mallocContiguous(70,1)==-1);
+			Lib.assertTrue(m.mallocContiguous(60,1)==134);
+			Lib.assertTrue(m.mallocContiguous(1,256)==-1);
+			Lib.assertTrue(m.getFreePages()==52 && m.freeRuns()==3);
+			Lib.assertTrue(m.mallocContiguous(7,1)==24);
+
+			// 31 to 133 become one free run
+			m.freeContiguous(64,70);
+			Lib.assertTrue(m.largestFreeRun()==103);
+			Lib.assertTrue(m.mallocContiguous(100,4)==32);
+			m.freeContiguous(32,100);
+
+			// a shared frame stays in use until its last reference goes
+			m.share(3);
+			m.freeContiguous(0,10);
+			Lib.assertTrue(m.getReferences(3)==1 && m.mallocContiguous(4,1)==4);
+			m.free(3);
+			Lib.assertTrue(m.mallocContiguous(4,1)==0);
+			m.freeContiguous(0,8);
+
+			m.freeContiguous(16,8);
+			m.freeContiguous(24,7);
+			m.freeContiguous(134,60);
+			Lib.assertTrue(m.getFreePages()==200 && m.freeRuns()==1);
+			Lib.assertTrue(m.mallocContiguous(200,1)==0);
+			m.freeContiguous(0,200);
+		}
+		private boolean isFree(int page){
+			return (used[page>>6]&(1L<<(page&63)))==0;
+		}
+		private void allocated(int size){
+			freePages-=size;
+			peakUsed=Math.max(peakUsed,totalPages-freePages);
+		}
+		/**
+		 * Drop a reference to a frame, freeing it if it was the last one.
+		 */
+		private void release(int page){
+			Lib.assertTrue(page>=0 && page<totalPages && !isFree(page));
+			if(--references[page]>0) return;
+			used[page>>6]&=~(1L<<(page&63));
+			freePages++;
+		}
+		/**
+		 * Return the first frame of a free run of <i>size</i> frames aligned
+		 * to <i>alignment</i>, or -1. A candidate that overlaps a used frame
+		 * is skipped past that frame.
+		 */
+		private int findRun(int size, int alignment){
+			int start=0;
+			while(start+size<=totalPages){
+				int last=lastUsed(start,start+size);
+				if(last==-1) return start;
+				start=(last/alignment+1)*alignment;
+			}
+			return -1;
+		}
+		/**
+		 * Return the highest used frame in [start, end), or -1.
+		 */
+		private int lastUsed(int start, int end){
+			for(int w=(end-1)>>6;w>=0 && w>=start>>6;w--){
+				long word=mask(used[w],w,start,end);
+				if(word!=0) return w*64+63-Long.numberOfLeadingZeros(word);
+			}
+			return -1;
+		}
+		/**
+		 * Return the highest free frame in [start, end), or -1.
+		 */
+		private int lastFree(int start, int end){
+			for(int w=(end-1)>>6;w>=0 && w>=start>>6;w--){
+				long word=mask(~used[w],w,start,end);
+				if(word!=0) return w*64+63-Long.numberOfLeadingZeros(word);
+			}
+			return -1;
+		}
+		private void setRange(int first, int size, boolean inUse){
+			int end=first+size;
+			for(int w=first>>6;w<=(end-1)>>6;w++){
+				long bits=mask(-1L,w,first,end);
+				if(inUse) used[w]|=bits;
+				else used[w]&=~bits;
+			}
+		}
+		/** Keep only the bits of word <i>w</i> that fall in [start, end). */
+		private long mask(long word, int w, int start, int end){
+			int lo=w*64;
+			if(start>lo) word&=-1L<<(start-lo);
+			if(end-lo<64) word&=(1L<<(end-lo))-1;
+			return word;
 		}
-		
 	}
 	public static MemoryPageManager memoryPages=null;
 	
+	/**
+	 * The process table. A PID names a slot in an array together with the
+	 * slot's generation, which changes every time the slot is freed, so a
+	 * stale PID never finds the process that later reuses its slot. Free
+	 * slots are kept on a free list.
+	 *
+	 * <p>
+	 * A slot is reserved by <tt>allocate()</tt>, holds a running process
+	 * from <tt>addProcess()</tt>, and a zombie from
+	 * <tt>removeProcess()</tt> until its parent reaps it or exits.
+	 */
 	public static class PIDManager{
-		int lastPID=0;
+		private static final int slotBits=16, maxSlots=1<<slotBits;
+		private static final byte free=0, reserved=1, live=2, zombie=3;
 		Lock lock;
-		private HashMap<Integer, UserProcess> current;
-		private HashMap<Integer, UserProcess> zombies;
+		private UserProcess[] processes;
+		private int[] generations;
+		private int[] nextFree;
+		private byte[] states;
+		private boolean[] orphans;
+		private int freeHead=-1;
+		private int used=0;
+		private int liveCount=0;
 		public PIDManager(){
 			lock=new Lock();
-			lastPID=0;
-			current=new HashMap<>();
-			zombies=new HashMap<>();
+			processes=new UserProcess[16];
+			generations=new int[16];
+			nextFree=new int[16];
+			states=new byte[16];
+			orphans=new boolean[16];
 		}
+		/**
+		 * Reserve a PID for a new process.
+		 *
+		 * @return	the PID, or -1 if the table is full.
+		 */
 		public int allocate(){
 			lock.acquire();
-			int p=lastPID++;
+			int slot;
+			if(freeHead!=-1){
+				slot=freeHead;
+				freeHead=nextFree[slot];
+			}else if(used<maxSlots){
+				if(used==processes.length) grow();
+				slot=used++;
+			}else{
+				lock.release();
+				return -1;
+			}
+			states[slot]=reserved;
+			orphans[slot]=false;
+			int p=(generations[slot]<<slotBits)|slot;
 			lock.release();
 			return p;
 		}
+		/**
+		 * Give back a PID whose process never started.
+		 */
+		public void release(int pid){
+			lock.acquire();
+			int slot=find(pid);
+			Lib.assertTrue(slot!=-1 && states[slot]==reserved);
+			freeSlot(slot);
+			lock.release();
+		}
 		public void addProcess(int pid, UserProcess process){
 			lock.acquire();
-			//System.out.println("Adding "+pid);
-			current.put(pid,process);
+			int slot=find(pid);
+			Lib.assertTrue(slot!=-1 && states[slot]==reserved);
+			processes[slot]=process;
+			states[slot]=live;
+			liveCount++;
 			lock.release();
 		}
+		/**
+		 * Turn a finished process into a zombie, or free it straight away
+		 * if its parent has already exited. Halts the machine once no
+		 * process is left running.
+		 */
 		public void removeProcess(int pid){
 			lock.acquire();
-			UserProcess zombie=current.get(pid);
-			current.remove(pid);
-			zombies.put(pid, zombie);
-			if(current.size()==0) Kernel.kernel.terminate();
+			int slot=find(pid);
+			Lib.assertTrue(slot!=-1 && states[slot]==live);
+			liveCount--;
+			if(orphans[slot]) freeSlot(slot);
+			else states[slot]=zombie;
+			if(liveCount==0) Kernel.kernel.terminate();
 			lock.release();
 		}
-		
+		/**
+		 * Return the running or zombie process with this PID, or
+		 * <tt>null</tt>.
+		 */
 		public UserProcess getProcess(int pid){
 			lock.acquire();
-			UserProcess process=current.get(pid);
-			if(process!=null){
-				//System.out.println(process);
-				lock.release();
-				return process;
-			}
-			//System.out.println("Getting Zombie Process!");
-			process=zombies.get(pid);
-			zombies.remove(pid);
+			int slot=find(pid);
+			UserProcess process=(slot!=-1 && states[slot]>=live)?processes[slot]:null;
 			lock.release();
 			return process;
-			
 		}
-		
+		/**
+		 * Free the PID of a zombie whose parent has collected its status.
+		 */
+		public void reap(int pid){
+			lock.acquire();
+			int slot=find(pid);
+			Lib.assertTrue(slot!=-1 && states[slot]==zombie);
+			freeSlot(slot);
+			lock.release();
+		}
+		/**
+		 * Note that a process's parent has exited: free it if it is a
+		 * zombie, and otherwise as soon as it exits.
+		 */
+		public void orphan(int pid){
+			lock.acquire();
+			int slot=find(pid);
+			if(slot!=-1){
+				if(states[slot]==zombie) freeSlot(slot);
+				else orphans[slot]=true;
+			}
+			lock.release();
+		}
+		private int find(int pid){
+			if(pid<0) return -1;
+			int slot=pid&(maxSlots-1);
+			if(slot>=used || states[slot]==free || generations[slot]!=pid>>>slotBits) return -1;
+			return slot;
+		}
+		private void freeSlot(int slot){
+			processes[slot]=null;
+			states[slot]=free;
+			// keep PIDs positive once a slot has been reused
+			generations[slot]=generations[slot]==0x7FFF?1:generations[slot]+1;
+			nextFree[slot]=freeHead;
+			freeHead=slot;
+		}
+		private void grow(){
+			int n=Math.min(processes.length*2,maxSlots);
+			processes=Arrays.copyOf(processes,n);
+			generations=Arrays.copyOf(generations,n);
+			nextFree=Arrays.copyOf(nextFree,n);
+			states=Arrays.copyOf(states,n);
+			orphans=Arrays.copyOf(orphans,n);
+		}
 	}
 	public static PIDManager pid=null;
+	/** Frames shared between processes, such as pages of mapped files. */
+	public static PageCache pageCache=null;
+	/**
+	 * Return the generation of the file with the specified name. It changes
+	 * whenever <tt>fileReplaced()</tt> is called for the name, and pages of
+	 * a file are cached under its name and generation, so a file created
+	 * again under an old name never shares the old file's pages.
+	 */
+	public static int getFileGeneration(String name){
+		boolean intStatus=Machine.interrupt().disable();
+		Integer generation=fileGenerations.get(name);
+		Machine.interrupt().restore(intStatus);
+		return generation==null?0:generation;
+	}
+	/**
+	 * Record that the file with the specified name was truncated by
+	 * <tt>creat()</tt> or removed by <tt>unlink()</tt>.
+	 */
+	public static void fileReplaced(String name){
+		boolean intStatus=Machine.interrupt().disable();
+		fileGenerations.put(name,getFileGeneration(name)+1);
+		Machine.interrupt().restore(intStatus);
+	}
+	private static HashMap<String,Integer> fileGenerations=new HashMap<String,Integer>();
 }
 
@@ -5,8 +5,8 @@ import nachos.threads.*;
 import nachos.userprog.*;
 
 import java.io.EOFException;
-import java.util.LinkedList;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Arrays;
 /**
  * Encapsulates the state of a user process that is not contained in its
  * user thread (or threads). This includes its address translation state, a
@@ -25,7 +25,8 @@ public class UserProcess {
      */
 	 private int pid=-1;
 	 private int parentPID=-1;
-	 private HashSet<Integer> childrenPIDs;
+	 private int[] children;
+	 private int numChildren=0;
 	 private int exitCode=0;
 	 private boolean exited=false;
 	private boolean crashed=false;
@@ -34,14 +35,13 @@ public class UserProcess {
 	pageTable = new TranslationEntry[numPhysPages];
 	for (int i=0; i<numPhysPages; i++)
 	    pageTable[i] = new TranslationEntry(i,i, true,false,false,false);
-	fds=new OpenFile[maxFds];
-	for(int i=0;i<maxFds;i++) fds[i]=null;
+	fds=new OpenFile[initialFds];
 	memMap=new VirtualMemoryHelper();
 	pid=UserKernel.pid.allocate();
 	
 	crashed=false;
 	exited=false;
-	childrenPIDs=new HashSet<>();
+	children=new int[4];
 
     }
     
@@ -67,6 +67,10 @@ public class UserProcess {
      */
     public boolean execute(String name, String[] args) {
 		Lib.debug(dbgProcess,"Loading");
+	if (pid==-1){
+		Lib.debug(dbgProcess,"Process table full!");
+		return false;
+	}
 	if (!load(name, args)){
 		Lib.debug(dbgProcess,"Error!");
 		return false;
@@ -75,12 +79,17 @@ public class UserProcess {
 	Lib.debug(dbgProcess,"Initializing console");
 	fds[0]=UserKernel.console.openForReading();
 	fds[1]=UserKernel.console.openForWriting();
-	UserKernel.pid.addProcess(this.pid,this);
-	mainThread=new UThread(this);
-	mainThread.setName(name).fork();
+	start(name);
 	
 	return true;
     }
+	private void start(String name){
+		UserKernel.pid.addProcess(this.pid,this);
+		//nobody will join a process without a parent
+		if(parentPID==-1) UserKernel.pid.orphan(this.pid);
+		mainThread=new UThread(this);
+		mainThread.setName(name).fork();
+	}
 	private UThread mainThread=null;
 	private void joinMainThread(){
 		//System.out.println(mainThread);
@@ -118,16 +127,14 @@ public class UserProcess {
     public String readVirtualMemoryString(int vaddr, int maxLength) {
 	Lib.assertTrue(maxLength >= 0);
 
-	byte[] bytes = new byte[maxLength+1];
+	int length = memMap.stringLength(vaddr, maxLength+1);
+	if (length < 0)
+	    return null;
 
-	int bytesRead = readVirtualMemory(vaddr, bytes);
-
-	for (int length=0; length<bytesRead; length++) {
-	    if (bytes[length] == 0)
-		return new String(bytes, 0, length);
-	}
+	byte[] bytes = new byte[length];
+	Lib.assertTrue(readVirtualMemory(vaddr, bytes) == length);
 
-	return null;
+	return new String(bytes);
     }
 
     /**
@@ -160,22 +167,7 @@ public class UserProcess {
 				 int length) {
 	Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
 
-	byte[] memory = Machine.processor().getMemory();
-	
-	// for now, just assume that virtual addresses equal physical addresses
-	if (vaddr < 0 || vaddr >= memory.length)
-	    return 0;
-	
-	ArrayMapping mapping[]=memMap.getMapping(vaddr,offset,length,false);
-	int amount=0;
-	for(int i=0;i<mapping.length;i++){
-		amount+=mapping[i].performRead(data);
-	}
-	/*
-	int amount = Math.min(length, memory.length-vaddr);
-	System.arraycopy(memory, vaddr, data, offset, amount);
-	*/
-	return amount;
+	return memMap.copy(vaddr, data, offset, length, false);
     }
 
     /**
@@ -209,23 +201,7 @@ public class UserProcess {
 				  int length) {
 	Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
 
-	byte[] memory = Machine.processor().getMemory();
-	
-	// for now, just assume that virtual addresses equal physical addresses
-	
-	ArrayMapping mapping[]=memMap.getMapping(vaddr,offset,length,true);
-	int amount=0;
-	for(int i=0;i<mapping.length;i++){
-		amount+=mapping[i].performWrite(data);
-	}
-	/*
-	if (vaddr < 0 || vaddr >= memory.length)
-	    return 0;
-
-	int amount = Math.min(length, memory.length-vaddr);
-	System.arraycopy(data, offset, memory, vaddr, amount);
-	*/
-	return amount;
+	return memMap.copy(vaddr, data, offset, length, true);
     }
 
     /**
@@ -247,6 +223,7 @@ public class UserProcess {
 	    Lib.debug(dbgProcess, "\topen failed");
 	    return false;
 	}
+	textKey = "coff:" + UserKernel.getFileGeneration(name) + ":" + name;
 	Lib.debug(dbgProcess,"Coff");
 	try {
 	    coff = new Coff(executable);
@@ -327,14 +304,28 @@ public class UserProcess {
      * @return	<tt>true</tt> if the sections were successfully loaded.
      */
     protected boolean loadSections() {
+	// read-only sections come from the shared text cache, so only the
+	// other pages need frames of their own
+	sharedText=new boolean[numPages];
+	int privatePages=numPages;
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    CoffSection section = coff.getSection(s);
+	    if (section.isReadOnly()) {
+		privatePages -= section.getLength();
+		for (int i=0; i<section.getLength(); i++)
+		    sharedText[section.getFirstVPN()+i] = true;
+	    }
+	}
 	//ExperimentNachos
-	int pages[]=UserKernel.memoryPages.malloc(numPages);
+	int pages[]=UserKernel.memoryPages.malloc(privatePages);
 	if(pages==null){
 		coff.close();
 		Lib.debug(dbgProcess, "\tExperimentNachos: insufficient virtual memory");
 		return false;
 	}
 	pageTable=new TranslationEntry[numPages];
+	copyOnWrite=new boolean[numPages];
+	int nextPage=0;
 	/*
 	if (numPages > Machine.processor().getNumPhysPages()) {
 	    coff.close();
@@ -352,29 +343,60 @@ public class UserProcess {
 
 	    for (int i=0; i<section.getLength(); i++) {
 		int vpn = section.getFirstVPN()+i;
-		pageTable[vpn]=new TranslationEntry(vpn,pages[vpn],true,section.isReadOnly(),false,false);
-		// for now, just assume virtual addresses=physical addresses
-		section.loadPage(i, pages[vpn]);
+		int ppn;
+		if (sharedText[vpn]) {
+		    final CoffSection text = section;
+		    ppn = UserKernel.pageCache.acquire(textKey, vpn,
+						       new PageCache.Loader() {
+			    public void load(int page, int ppn) {
+				text.loadPage(page-text.getFirstVPN(), ppn);
+			    }
+			});
+		    if (ppn == -1) {
+			Lib.debug(dbgProcess, "\tinsufficient memory for text");
+			releaseText(vpn);
+			UserKernel.memoryPages.free(pages);
+			coff.close();
+			return false;
+		    }
+		}
+		else {
+		    ppn = pages[nextPage++];
+		    section.loadPage(i, ppn);
+		}
+		pageTable[vpn]=new TranslationEntry(vpn,ppn,true,section.isReadOnly(),false,false);
 	    }
 	}
 	for(int i=0;i<=stackPages;i++){
 		int index=numPages-i-1;
-		pageTable[index]=new TranslationEntry(index,pages[index],true,false,false,false);
+		pageTable[index]=new TranslationEntry(index,pages[nextPage++],true,false,false,false);
 		
 	}
 	return true;
     }
 
+    /**
+     * Drop this process's references to its shared text pages below
+     * <i>end</i>.
+     */
+    private void releaseText(int end) {
+	for (int vpn=0; vpn<end; vpn++) {
+	    if (sharedText[vpn])
+		UserKernel.pageCache.release(textKey, vpn);
+	}
+    }
+
     /**
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
     protected void unloadSections() {
-		
-		for(int i=0;i<pageTable.length;i++){
-			Lib.debug(dbgProcess,"Free!");
-			UserKernel.memoryPages.free(pageTable[i].ppn);
-			
+		int privatePages=0;
+		int pages[]=new int[numPages];
+		for(int i=0;i<numPages;i++){
+			if(sharedText==null || !sharedText[i]) pages[privatePages++]=pageTable[i].ppn;
 		}
+		if(sharedText!=null) releaseText(numPages);
+		UserKernel.memoryPages.free(Arrays.copyOf(pages,privatePages));
     }    
 
     /**
@@ -387,8 +409,16 @@ public class UserProcess {
     public void initRegisters() {
 	Processor processor = Machine.processor();
 
+	// a forked process continues from its parent's registers
+	if (forkRegisters != null) {
+	    for (int i=0; i<Processor.numUserRegisters; i++)
+		processor.writeRegister(i, forkRegisters[i]);
+	    forkRegisters = null;
+	    return;
+	}
+
 	// by default, everything's 0
-	for (int i=0; i<processor.numUserRegisters; i++)
+	for (int i=0; i<Processor.numUserRegisters; i++)
 	    processor.writeRegister(i, 0);
 
 	// initialize PC and SP according
@@ -405,17 +435,44 @@ public class UserProcess {
      */
     private int handleHalt() {
 	if(pid!=0) return 0;
-	Machine.halt();
+	Kernel.kernel.terminate();
 	
-	Lib.assertNotReached("Machine.halt() did not halt machine!");
+	Lib.assertNotReached("Kernel.terminate() did not halt machine!");
 	return 0;
     }
+	/**
+	 * Return the lowest free file descriptor, growing the table if it is
+	 * full, or -1 if the process already has <tt>maxFds</tt> open files.
+	 */
 	private int allocateFD(){
-		for(int i=0;i<maxFds;i++){
-			if(fds[i]==null) return i;
+		for(int i=firstFreeFD;i<fds.length;i++){
+			if(fds[i]==null) return firstFreeFD=i;
 		}
-		return -1;
-		
+		if(fds.length==maxFds) return -1;
+		int fd=fds.length;
+		growFDs(fd+1);
+		return firstFreeFD=fd;
+	}
+	private void growFDs(int size){
+		if(size>fds.length) fds=Arrays.copyOf(fds,Math.min(Math.max(size,fds.length*2),maxFds));
+	}
+	private boolean validFD(int fd){
+		return fd>=0 && fd<fds.length && fds[fd]!=null;
+	}
+	private void closeFD(int fd){
+		Mapping mapping=findMapping(fd);
+		if(mapping!=null) unmap(mapping);
+		fds[fd].close();
+		fds[fd]=null;
+		if(fd<firstFreeFD) firstFreeFD=fd;
+	}
+	/**
+	 * Return a new reference to the file open on <i>fd</i>, turning it into a
+	 * <tt>SharedOpenFile</tt> first if it is not one yet.
+	 */
+	private OpenFile shareFD(int fd){
+		if(!(fds[fd] instanceof SharedOpenFile)) fds[fd]=new SharedOpenFile(fds[fd]);
+		return ((SharedOpenFile)fds[fd]).share();
 	}
 	private int handleCreate(int p_name){
 		String name=readVirtualMemoryString(p_name,256);
@@ -424,6 +481,8 @@ public class UserProcess {
 		if(fd==-1) return fd;
 		OpenFile f=UserKernel.fileSystem.open(name,true);
 		if(f==null) return -1;
+		// the file was truncated: its old cached pages are stale
+		UserKernel.fileReplaced(name);
 		fds[fd]=f;
 		return fd;
 	}
@@ -439,57 +498,220 @@ public class UserProcess {
 	}
 	
 	private int handleRead(int fd,int p_buf, int count){
-		if(fd<0 || fd>=maxFds){
-			Lib.debug(dbgProcess,"Bad File Descriptor!");
-			return -1;
-		}
-		if(fds[fd]==null){
-			Lib.debug(dbgProcess,"Bad or Closed File Descriptor!");
+		if(!validFD(fd) || findMapping(fd)!=null){
+			Lib.debug(dbgProcess,"Bad, Closed or Mapped File Descriptor!");
 			return -1;
 		}
 		if(count<0){
 			Lib.debug(dbgProcess,"Bad Count!");
 			return -1;
 		}
-		byte buffer[]=new byte[count];
-		OpenFile f=fds[fd];
-		int rc=f.read(buffer,0,count);
+		int rc=transferFile(fds[fd],p_buf,count,true);
 		if(rc==-1){
 			Lib.debug(dbgProcess,"Read Error!");
 			return -1;
 		}
-		int cc=writeVirtualMemory(p_buf,buffer,0,rc);
-		if(cc!=rc){
-			Lib.debug(dbgProcess,"Write to memory error! "+cc+" "+rc);
-			return -1;
-		}
 		return rc;
 		
 	}
 	
 	private int handleWrite(int fd, int p_buf, int count){
-		if(fd<0 || fd>=maxFds) return -1;
-		if(fds[fd]==null) return -1;
+		if(!validFD(fd) || findMapping(fd)!=null) return -1;
 		if(count<0) return -1;
-		byte buffer[]=new byte[count];
-		if(readVirtualMemory(p_buf,buffer)!=count) return -1;
-		OpenFile f=fds[fd];
-		int rc=f.write(buffer,0,count);
-		return rc;
+		return transferFile(fds[fd],p_buf,count,false);
 		
 	}
+	
+	/**
+	 * Transfer data directly between an open file and this process's
+	 * memory, without copying it through a kernel buffer. Each run of
+	 * physically contiguous pages is passed to the file as one region of
+	 * <tt>Machine.processor().getMemory()</tt>. The whole range must be
+	 * mapped, and writable if <i>toMemory</i> is set.
+	 *
+	 * <p>
+	 * Pages of the file that some process has mapped with <tt>mmap()</tt>
+	 * are kept coherent: data written is also copied into them, and data
+	 * read from them replaces what was read from the file, since they may
+	 * hold changes that have not been written back yet.
+	 *
+	 * @return	the number of bytes transferred, or -1 if the range is not
+	 *		mapped, or if the file or the memory for a page failed
+	 *		before transferring anything.
+	 */
+	private int transferFile(OpenFile f, int vaddr, int count, boolean toMemory){
+		if(!memMap.checkRange(vaddr,count,toMemory)){
+			Lib.debug(dbgProcess,"Bad buffer address!");
+			return -1;
+		}
+		// streams (the console, pipes) have no length and cannot be mapped
+		String key=f.length()>=0?fileKey(f.getName()):null;
+		byte[] memory=Machine.processor().getMemory();
+		int done=0;
+		while(done<count){
+			int run=memMap.prepareRun(vaddr+done,count-done,toMemory);
+			// out of frames for a copy-on-write or mapped page
+			if(run==-1) return done==0?-1:done;
+			int physAddr=memMap.translate(vaddr+done);
+			int pos=key!=null?f.tell():0;
+			int rc=toMemory?f.read(memory,physAddr,run):f.write(memory,physAddr,run);
+			if(rc==-1) return done==0?-1:done;
+			if(key!=null) UserKernel.pageCache.copy(key,pos,memory,physAddr,rc,!toMemory);
+			done+=rc;
+			// a short transfer means end of file or no more console input
+			if(rc<run) break;
+			// streams (the console, pipes) may block, so read them only once
+			if(toMemory && f.length()<0) break;
+		}
+		return done;
+	}
 	private int handleClose(int fd){
-		if(fd<0 || fd>=maxFds) return -1;
-		if(fds[fd]==null) return -1;
-		fds[fd].close();
-		fds[fd]=null;
+		if(!validFD(fd)) return -1;
+		closeFD(fd);
 		return 0;
 		
 	}
+	private int handleDup(int fd){
+		if(!validFD(fd)) return -1;
+		int newFD=allocateFD();
+		if(newFD==-1) return -1;
+		fds[newFD]=shareFD(fd);
+		return newFD;
+	}
+	private int handleDup2(int fd, int newFD){
+		if(!validFD(fd)) return -1;
+		if(newFD<0 || newFD>=maxFds) return -1;
+		if(newFD==fd) return newFD;
+		growFDs(newFD+1);
+		if(fds[newFD]!=null) closeFD(newFD);
+		fds[newFD]=shareFD(fd);
+		return newFD;
+	}
+	private int handlePipe(int p_fds){
+		int readFD=allocateFD();
+		if(readFD==-1) return -1;
+		Pipe pipe=new Pipe();
+		fds[readFD]=pipe.getReadEnd();
+		int writeFD=allocateFD();
+		if(writeFD==-1){
+			closeFD(readFD);
+			return -1;
+		}
+		fds[writeFD]=pipe.getWriteEnd();
+		byte arr[]=new byte[8];
+		Lib.bytesFromInt(arr,0,readFD);
+		Lib.bytesFromInt(arr,4,writeFD);
+		if(writeVirtualMemory(p_fds,arr)!=8){
+			closeFD(readFD);
+			closeFD(writeFD);
+			return -1;
+		}
+		return 0;
+	}
+	/**
+	 * Map the file open on <i>fd</i> into memory at the page-aligned address
+	 * <i>vaddr</i>, above the program image. Pages are loaded when first
+	 * touched and are shared with other processes mapping the same file.
+	 *
+	 * @return	the length of the file, or -1 on error.
+	 */
+	private int handleMmap(int fd, int vaddr){
+		if(!validFD(fd) || findMapping(fd)!=null) return -1;
+		int length=fds[fd].length();
+		if(length<0 || vaddr<numPages*pageSize || Processor.offsetFromAddress(vaddr)!=0) return -1;
+		int firstVPN=Processor.pageFromAddress(vaddr);
+		int mappedPages=(length+pageSize-1)/pageSize;
+		if(mappedPages>maxVirtualPages-firstVPN) return -1;
+		for(Mapping m : mappings){
+			if(firstVPN<m.firstVPN+m.numPages && m.firstVPN<firstVPN+mappedPages) return -1;
+		}
+		if(firstVPN+mappedPages>pageTable.length){
+			pageTable=Arrays.copyOf(pageTable,firstVPN+mappedPages);
+			Machine.processor().setPageTable(pageTable);
+		}
+		mappings.add(new Mapping(fd,fds[fd],firstVPN,mappedPages,length));
+		return length;
+	}
+	/**
+	 * Remove the mapping that starts at <i>vaddr</i>, writing its dirty pages
+	 * back to the file.
+	 */
+	private int handleMunmap(int vaddr){
+		for(Mapping m : mappings){
+			if(m.firstVPN*pageSize==vaddr){
+				unmap(m);
+				return 0;
+			}
+		}
+		return -1;
+	}
+	private Mapping findMapping(int fd){
+		for(Mapping m : mappings){
+			if(m.fd==fd) return m;
+		}
+		return null;
+	}
+	private void unmap(Mapping m){
+		byte[] memory=Machine.processor().getMemory();
+		for(int i=0;i<m.numPages;i++){
+			TranslationEntry entry=pageTable[m.firstVPN+i];
+			if(entry==null) continue;
+			if(entry.dirty){
+				int count=Math.min(pageSize,m.length-i*pageSize);
+				m.file.write(i*pageSize,memory,entry.ppn*pageSize,count);
+			}
+			UserKernel.pageCache.release(m.key,i);
+			pageTable[m.firstVPN+i]=null;
+		}
+		mappings.remove(m);
+	}
+	/**
+	 * Load a page of a memory-mapped file on its first access.
+	 *
+	 * @return	<tt>true</tt> if <i>vpn</i> belongs to a mapping and was
+	 *		loaded.
+	 */
+	private boolean handlePageFault(int vpn){
+		for(final Mapping m : mappings){
+			if(vpn<m.firstVPN || vpn>=m.firstVPN+m.numPages) continue;
+			int ppn=UserKernel.pageCache.acquire(m.key,vpn-m.firstVPN,new PageCache.Loader(){
+				public void load(int page, int ppn){
+					byte[] memory=Machine.processor().getMemory();
+					int count=Math.max(m.file.read(page*pageSize,memory,ppn*pageSize,pageSize),0);
+					Arrays.fill(memory,ppn*pageSize+count,(ppn+1)*pageSize,(byte)0);
+				}
+			});
+			if(ppn==-1) return false;
+			pageTable[vpn]=new TranslationEntry(vpn,ppn,true,false,false,false);
+			return true;
+		}
+		return false;
+	}
+	/**
+	 * Return the name the pages of the named file are cached under in
+	 * <tt>UserKernel.pageCache</tt>.
+	 */
+	private static String fileKey(String name){
+		return "file:"+UserKernel.getFileGeneration(name)+":"+name;
+	}
+	/** A file mapped into memory by <tt>mmap()</tt>. */
+	private static class Mapping{
+		Mapping(int fd, OpenFile file, int firstVPN, int numPages, int length){
+			this.fd=fd;
+			this.file=file;
+			this.firstVPN=firstVPN;
+			this.numPages=numPages;
+			this.length=length;
+			key=fileKey(file.getName());
+		}
+		int fd, firstVPN, numPages, length;
+		OpenFile file;
+		String key;
+	}
 	private int handleUnlink(int p_name){
 		String name=readVirtualMemoryString(p_name,256);
 		if(name==null) return -1;
-		UserKernel.fileSystem.remove(name);
+		if(UserKernel.fileSystem.remove(name)) UserKernel.fileReplaced(name);
 		return 0;
 		
 	}
@@ -498,37 +720,43 @@ public class UserProcess {
 		Lib.debug(dbgProcess,"Exec1");
 		String file=readVirtualMemoryString(p_file,256);
 		if(file==null) return -1;
-		if(argc<0) return -1;
+		//each argument takes at least 5 bytes of the argument page
+		if(argc<0 || argc*5>pageSize) return -1;
 		String argv[]=new String[argc];
 		Lib.debug(dbgProcess,"Exec2");
+		byte pointers[]=new byte[argc*4];
+		if(readVirtualMemory(p_argv,pointers)!=pointers.length) return -1;
 		for(int i=0;i<argc;i++){
-			byte pointer[]=new byte[4];
-			if(readVirtualMemory(p_argv+i*4,pointer)!=4) return -1;
-			int arg_addr=(int) ((((int) pointer[0] & 0xFF) << 0)|(((int) pointer[1] & 0xFF) << 8)|(((int) pointer[2] & 0xFF) << 16) |(((int) pointer[3] & 0xFF) << 24));
+			int arg_addr=Lib.bytesToInt(pointers,i*4);
 			argv[i]=readVirtualMemoryString(arg_addr, 256);
 			if(argv[i]==null) return -1;
 			
 		}
 		Lib.debug(dbgProcess,"Exec3");
 		UserProcess proc=forkProcess();
-		if(!proc.execute(file,argv)) return -1;
+		if(!proc.execute(file,argv)){
+			removeChild(proc.pid);
+			if(proc.pid!=-1) UserKernel.pid.release(proc.pid);
+			return -1;
+		}
 		
 		return proc.pid;
 	}
 
 	private int handleJoin(int pid, int p_status){
-		if(!childrenPIDs.contains(pid)){
+		if(!removeChild(pid)){
 			Lib.debug(dbgProcess,"Joining non-child process!");
 			return -1;
 		}
-		childrenPIDs.remove(pid);
 		UserProcess child=UserKernel.pid.getProcess(pid);
 		if(child==null){
 			Lib.debug(dbgProcess,"Process not exist!");
 			return -1;
 		}
-		if(!child.exited) child.joinMainThread();
+		//wait for the child to finish exiting, even if it has set exited
+		child.joinMainThread();
 		Lib.assertTrue(child.exited);
+		UserKernel.pid.reap(pid);
 		int status=child.exitCode;
 		int ret=child.crashed?0:1;
 		Lib.debug(dbgProcess,"Return value: "+ret);
@@ -544,9 +772,100 @@ public class UserProcess {
 	private UserProcess forkProcess(){
 		UserProcess child=UserProcess.newUserProcess();
 		child.parentPID=pid;
-		childrenPIDs.add(child.pid);
+		if(numChildren==children.length) children=Arrays.copyOf(children,numChildren*2);
+		children[numChildren++]=child.pid;
 		return child;
 	}
+	private boolean removeChild(int child){
+		for(int i=0;i<numChildren;i++){
+			if(children[i]==child){
+				children[i]=children[--numChildren];
+				return true;
+			}
+		}
+		return false;
+	}
+	/**
+	 * Create a child process running the same program, sharing all of this
+	 * process's frames. Writable pages become read-only in both processes
+	 * and are copied by whichever process writes to them first. The child
+	 * gets its own references to this process's open files and mapped
+	 * files, and returns 0 from the syscall.
+	 *
+	 * @return	the child's PID, or -1 on error.
+	 */
+	private int handleFork(){
+		UserProcess child=forkProcess();
+		if(child.pid==-1){
+			removeChild(child.pid);
+			return -1;
+		}
+		Processor processor=Machine.processor();
+		child.forkRegisters=new int[Processor.numUserRegisters];
+		for(int i=0;i<Processor.numUserRegisters;i++) child.forkRegisters[i]=processor.readRegister(i);
+		child.forkRegisters[Processor.regV0]=0;
+		child.forkRegisters[Processor.regPC]=child.forkRegisters[Processor.regNextPC];
+		child.forkRegisters[Processor.regNextPC]+=4;
+
+		child.numPages=numPages;
+		child.pageTable=new TranslationEntry[pageTable.length];
+		child.copyOnWrite=new boolean[numPages];
+		for(int vpn=0;vpn<numPages;vpn++){
+			TranslationEntry entry=pageTable[vpn];
+			if(!entry.readOnly || isCopyOnWrite(vpn)){
+				entry.readOnly=true;
+				copyOnWrite[vpn]=child.copyOnWrite[vpn]=true;
+			}
+			UserKernel.memoryPages.share(entry.ppn);
+			child.pageTable[vpn]=new TranslationEntry(vpn,entry.ppn,true,true,false,false);
+		}
+		for(int fd=0;fd<fds.length;fd++){
+			if(fds[fd]!=null){
+				child.growFDs(fd+1);
+				child.fds[fd]=shareFD(fd);
+			}
+		}
+		for(final Mapping m : mappings){
+			Mapping copy=new Mapping(m.fd,child.fds[m.fd],m.firstVPN,m.numPages,m.length);
+			// the file may have been replaced since it was mapped
+			copy.key=m.key;
+			child.mappings.add(copy);
+			for(int vpn=m.firstVPN;vpn<m.firstVPN+m.numPages;vpn++){
+				if(pageTable[vpn]==null) continue;
+				final int ppn=pageTable[vpn].ppn;
+				// the page is cached, so this only adds a reference
+				Lib.assertTrue(UserKernel.pageCache.acquire(m.key,vpn-m.firstVPN,null)==ppn);
+				child.pageTable[vpn]=new TranslationEntry(vpn,ppn,true,false,false,false);
+			}
+		}
+		child.start(mainThread.getName());
+		return child.pid;
+	}
+	/**
+	 * Give this process its own copy of a copy-on-write page, or simply make
+	 * the page writable if no other process shares it any more.
+	 *
+	 * @return	<tt>true</tt> if <i>vpn</i> was a copy-on-write page and is
+	 *		now writable.
+	 */
+	private boolean handleCopyOnWrite(int vpn){
+		if(!isCopyOnWrite(vpn)) return false;
+		TranslationEntry entry=pageTable[vpn];
+		if(UserKernel.memoryPages.getReferences(entry.ppn)>1){
+			int[] ppns=UserKernel.memoryPages.malloc(1);
+			if(ppns==null) return false;
+			byte[] memory=Machine.processor().getMemory();
+			System.arraycopy(memory,entry.ppn*pageSize,memory,ppns[0]*pageSize,pageSize);
+			UserKernel.memoryPages.free(entry.ppn);
+			entry.ppn=ppns[0];
+		}
+		entry.readOnly=false;
+		copyOnWrite[vpn]=false;
+		return true;
+	}
+	private boolean isCopyOnWrite(int vpn){
+		return copyOnWrite!=null && vpn>=0 && vpn<copyOnWrite.length && copyOnWrite[vpn];
+	}
 	private void handleExit(int status){
 		exited=true;
 		exitCode=status;
@@ -554,11 +873,14 @@ public class UserProcess {
 	}
 	
 	private void cleanUp(){
+		while(!mappings.isEmpty()) unmap(mappings.get(0));
 		unloadSections();
-		for(int i=0;i<maxFds;i++){
+		for(int i=0;i<fds.length;i++){
 			if(fds[i]!=null) fds[i].close();
 			
 		}
+		for(int i=0;i<numChildren;i++) UserKernel.pid.orphan(children[i]);
+		numChildren=0;
 		UserKernel.pid.removeProcess(pid);
 		
 
@@ -575,7 +897,13 @@ public class UserProcess {
 	syscallRead = 6,
 	syscallWrite = 7,
 	syscallClose = 8,
-	syscallUnlink = 9;
+	syscallUnlink = 9,
+	syscallMmap = 10,
+	syscallDup = 13,
+	syscallDup2 = 14,
+	syscallPipe = 15,
+	syscallMunmap = 16,
+	syscallFork = 17;
 
     /**
      * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -596,6 +924,12 @@ public class UserProcess {
      *								</tt></td></tr>
      * <tr><td>8</td><td><tt>int  close(int fd);</tt></td></tr>
      * <tr><td>9</td><td><tt>int  unlink(char *name);</tt></td></tr>
+     * <tr><td>10</td><td><tt>int  mmap(int fd, char *address);</tt></td></tr>
+     * <tr><td>13</td><td><tt>int  dup(int fd);</tt></td></tr>
+     * <tr><td>14</td><td><tt>int  dup2(int fd, int newfd);</tt></td></tr>
+     * <tr><td>15</td><td><tt>int  pipe(int *fds);</tt></td></tr>
+     * <tr><td>16</td><td><tt>int  munmap(char *address);</tt></td></tr>
+     * <tr><td>17</td><td><tt>int  fork();</tt></td></tr>
      * </table>
      * 
      * @param	syscall	the syscall number.
@@ -628,6 +962,18 @@ public class UserProcess {
 		return handleUnlink(a0);
 	case syscallJoin:
 		return handleJoin(a0,a1);
+	case syscallDup:
+		return handleDup(a0);
+	case syscallDup2:
+		return handleDup2(a0,a1);
+	case syscallPipe:
+		return handlePipe(a0);
+	case syscallMmap:
+		return handleMmap(a0,a1);
+	case syscallMunmap:
+		return handleMunmap(a0);
+	case syscallFork:
+		return handleFork();
 	default:
 	    Lib.debug(dbgProcess, "Unknown syscall " + syscall);
 		return -1;
@@ -658,8 +1004,26 @@ public class UserProcess {
 	    processor.writeRegister(Processor.regV0, result);
 	    processor.advancePC();
 	    break;				       
-				       
+	
+	case Processor.exceptionPageFault:
+		// not a mapped page: the process crashes
+		if(!handlePageFault(Processor.pageFromAddress(processor.readRegister(Processor.regBadVAddr))))
+			crash(cause);
+		break;
+
+	case Processor.exceptionReadOnly:
+		// a truly read-only page: the process crashes
+		if(!handleCopyOnWrite(Processor.pageFromAddress(processor.readRegister(Processor.regBadVAddr))))
+			crash(cause);
+		break;
+
 	default:
+		crash(cause);
+	    //Lib.assertNotReached("Unexpected exception");
+	}
+    }
+
+	private void crash(int cause){
 	    Lib.debug(dbgProcess, "Unexpected exception: " +
 		      Processor.exceptionNames[cause]);
 		Lib.debug(dbgProcess,"Crash!");
@@ -667,9 +1031,7 @@ public class UserProcess {
 		exited=true;
 		exitCode=-1;
 		cleanUp();
-	    //Lib.assertNotReached("Unexpected exception");
 	}
-    }
 
     /** The program being run by this process. */
     protected Coff coff;
@@ -688,8 +1050,29 @@ public class UserProcess {
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
 	
-	protected final int maxFds=16;
+	protected static final int initialFds=16, maxFds=1024;
 	protected OpenFile[] fds;
+	/** No descriptor below this one is free. */
+	private int firstFreeFD=0;
+	/** The largest address space, in pages, that mmap() can extend to. */
+	protected static final int maxVirtualPages=1<<16;
+	private ArrayList<Mapping> mappings=new ArrayList<Mapping>();
+	/** The image pages that are shared read-only until written. */
+	private boolean[] copyOnWrite;
+	/**
+	 * The pages of read-only sections, which are shared with every process
+	 * running the same executable through <tt>UserKernel.pageCache</tt>,
+	 * under <tt>textKey</tt> and the page's VPN. The key includes the
+	 * file's generation, so an executable replaced with <tt>creat()</tt>
+	 * (as <tt>cp</tt> does) or removed and created again is loaded afresh.
+	 * A file written in place without being truncated, or changed outside
+	 * Nachos, keeps its generation, and processes that start while an
+	 * older copy is still running share that copy's text.
+	 */
+	private boolean[] sharedText;
+	private String textKey;
+	/** The registers a forked process starts with. */
+	private int[] forkRegisters=null;
 	private VirtualMemoryHelper memMap;
 	
 	//Virtual memory helper to map array onto physical memory segments and perform write operations.
@@ -698,93 +1081,131 @@ public class UserProcess {
 			
 			
 		}
-		public ArrayMapping[] getMapping(int start, int offset, int count, boolean write){
-			
-			int firstPage=Processor.pageFromAddress(start);
-			int firstOffset=Processor.offsetFromAddress(start);
-			int lastPage=Processor.pageFromAddress(start+count);
-			if(firstPage==lastPage){ //In-page operation
-				ArrayMapping map=generateMap(firstPage, firstOffset, offset, count, write);
-				if(map==null) return new ArrayMapping[0];
-				ArrayMapping arr[]=new ArrayMapping[1];
-				arr[0]=map;
-				return arr;
-				
-			}else{
-				LinkedList<ArrayMapping> mapping=new LinkedList<>();
-				int firstPageCount=pageSize-firstOffset;
-				count-=firstPageCount;
-				ArrayMapping map=generateMap(firstPage, firstOffset, offset, firstPageCount, write);
-				offset+=firstPageCount;
-				if(map==null) return cast(mapping);
-				mapping.add(map);
-				for(int i=firstPage+1;i<lastPage;i++){
-					count-=pageSize;
-					map=generateMap(i,0,offset,pageSize,write);
-					if(map==null) return cast(mapping);
-					offset+=firstPageCount;
-					mapping.add(map);
+		/**
+		 * Test whether every page in a range of virtual memory is mapped,
+		 * and writable if <i>write</i> is set.
+		 */
+		public boolean checkRange(int vaddr, int count, boolean write){
+			if(vaddr<0 || count<0) return false;
+			if(count==0) return true;
+			long last=(long)vaddr+count-1;
+			if(last>=(long)pageTable.length*pageSize) return false;
+			for(int page=Processor.pageFromAddress(vaddr);page<=(int)(last/pageSize);page++){
+				TranslationEntry entry=getEntry(page);
+				if(entry==null) return false;
+				if(write && entry.readOnly && !isCopyOnWrite(page)) return false;
+			}
+			return true;
+		}
+		/**
+		 * Mark the pages starting at <i>vaddr</i> as used (and dirty, for a
+		 * write) for as long as they are physically contiguous, up to
+		 * <i>count</i> bytes, and return the number of bytes covered. The
+		 * range must have passed <tt>checkRange()</tt>, but a page can still
+		 * fail to be prepared when there is no free frame to load it or to
+		 * break its copy-on-write sharing; the run then stops before that
+		 * page.
+		 *
+		 * @return	the number of bytes covered, or -1 if the first page
+		 *		could not be prepared.
+		 */
+		public int prepareRun(int vaddr, int count, boolean write){
+			int page=Processor.pageFromAddress(vaddr);
+			TranslationEntry entry=preparePage(page,write);
+			if(entry==null) return -1;
+			int run=Math.min(count,pageSize-Processor.offsetFromAddress(vaddr));
+			while(run<count){
+				// preparing a page can copy it, so compare frames afterwards
+				TranslationEntry next=preparePage(page+1,write);
+				if(next==null || next.ppn!=entry.ppn+1) break;
+				entry=next;
+				page++;
+				run+=Math.min(count-run,pageSize);
+			}
+			return run;
+		}
+		/**
+		 * Copy data between an array and this process's virtual memory,
+		 * one page at a time, stopping at the first page that is not
+		 * mapped (or is read-only, for a write).
+		 *
+		 * @return	the number of bytes copied.
+		 */
+		public int copy(int vaddr, byte[] data, int offset, int length, boolean write){
+			if(vaddr<0) return 0;
+			byte[] memory=Machine.processor().getMemory();
+			int pageOffset=Processor.offsetFromAddress(vaddr);
+			// fast path: the transfer is within a single page
+			if(pageOffset+length<=pageSize){
+				TranslationEntry entry=preparePage(Processor.pageFromAddress(vaddr),write);
+				if(entry==null) return 0;
+				copyPage(memory,Processor.makeAddress(entry.ppn,pageOffset),data,offset,length,write);
+				return length;
+			}
+			int amount=0;
+			while(amount<length){
+				TranslationEntry entry=preparePage(Processor.pageFromAddress(vaddr+amount),write);
+				if(entry==null) break;
+				int count=Math.min(length-amount,pageSize-pageOffset);
+				copyPage(memory,Processor.makeAddress(entry.ppn,pageOffset),data,offset+amount,count,write);
+				amount+=count;
+				pageOffset=0;
+			}
+			return amount;
+		}
+		private void copyPage(byte[] memory, int physAddr, byte[] data, int offset, int count, boolean write){
+			if(write) System.arraycopy(data,offset,memory,physAddr,count);
+			else System.arraycopy(memory,physAddr,data,offset,count);
+		}
+		/**
+		 * Return the length of the null-terminated string at <i>vaddr</i>,
+		 * looking at no more than <i>limit</i> bytes, or -1 if no null
+		 * terminator is found in mapped memory within that limit.
+		 */
+		public int stringLength(int vaddr, int limit){
+			if(vaddr<0) return -1;
+			byte[] memory=Machine.processor().getMemory();
+			int length=0;
+			while(length<limit){
+				TranslationEntry entry=preparePage(Processor.pageFromAddress(vaddr+length),false);
+				if(entry==null) return -1;
+				int pageOffset=Processor.offsetFromAddress(vaddr+length);
+				int physAddr=Processor.makeAddress(entry.ppn,pageOffset);
+				int end=physAddr+Math.min(limit-length,pageSize-pageOffset);
+				for(int i=physAddr;i<end;i++){
+					if(memory[i]==0) return length+i-physAddr;
 				}
-				map=generateMap(lastPage,0,offset,count,write);
-				if(map==null) return cast(mapping);
-				mapping.add(map);
-				return cast(mapping);
-				
+				length+=end-physAddr;
 			}
-
+			return -1;
 		}
-		private ArrayMapping generateMap(int page, int poffset, int offset, int count, boolean write){
-			TranslationEntry entry=preparePage(page, write);
-			if(entry==null) return null;
-			int physPage=entry.ppn;
-			int physAddr=Processor.makeAddress(physPage, poffset);
-			return new ArrayMapping(physAddr, offset, count);
+		/**
+		 * Return the physical address of a mapped virtual address.
+		 */
+		public int translate(int vaddr){
+			TranslationEntry entry=pageTable[Processor.pageFromAddress(vaddr)];
+			return Processor.makeAddress(entry.ppn,Processor.offsetFromAddress(vaddr));
+		}
+		/**
+		 * Return the valid page table entry for a page, first loading it if
+		 * it is part of a memory-mapped file, or <tt>null</tt>.
+		 */
+		private TranslationEntry getEntry(int page){
+			if(page<0 || page>=pageTable.length) return null;
+			TranslationEntry entry=pageTable[page];
+			if(entry!=null && entry.valid) return entry;
+			if(!handlePageFault(page)) return null;
+			return pageTable[page];
 		}
 		private TranslationEntry preparePage(int page, boolean write){
-			if(page<0 || page>=UserProcess.this.numPages){
-				return null;
-			}
-			TranslationEntry entry=UserProcess.this.pageTable[page];
+			TranslationEntry entry=getEntry(page);
 			if(entry==null) return null;
 			if(write){
-				if(entry.readOnly) return null;
+				if(entry.readOnly && !handleCopyOnWrite(page)) return null;
 				else entry.dirty=true;
 			}
 			entry.used=true;
 			return entry;
 		}
-		private ArrayMapping[] cast(LinkedList<ArrayMapping> list){
-			ArrayMapping[] r=new ArrayMapping[list.size()];
-			list.toArray(r);
-			return r;
-			
-		}
-
-	}
-	private class ArrayMapping{
-		private int physAddr;
-		private int arrayOffset;
-		private int mapCount;
-		
-		public ArrayMapping(int addr, int offset, int count){
-			physAddr=addr;
-			arrayOffset=offset;
-			mapCount=count;
-		}
-		
-		public int performWrite(byte[] src){
-			byte[] memory = Machine.processor().getMemory();
-			System.arraycopy(src, arrayOffset, memory, physAddr, mapCount);
-			return mapCount;
-			
-		}
-		public int performRead(byte[] target){
-			byte[] memory = Machine.processor().getMemory();
-			System.arraycopy(memory, physAddr, target, arrayOffset, mapCount);
-			return mapCount;
-		}
-		
 	}
 }
-
-